@@ -5,6 +5,8 @@
 public class Bus implements java.io.Serializable {
     public byte[] buffer;
     public int size;
+    public boolean deflated;   // buffer holds size deflated bytes, see BusCodec
+    public int rawSize;        // length once inflated
 
     public Bus(int size){
         this.size = size;
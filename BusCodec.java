@@ -0,0 +1,120 @@
+/* BusCodec.java:
+ *    per-chunk compression of Bus contents with the JDK's Deflater.
+ *    A chunk is only sent deflated if that saves at least a tenth of
+ *    it; chunks larger than a probe are first tried on their first
+ *    PROBE bytes, so data that is already compressed costs a few
+ *    microseconds, not a full deflate. Counters for both directions
+ *    of this process are kept in the static fields below.
+ */
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class BusCodec {
+    private static final int MIN = 512;        // not worth it below this
+    private static final int PROBE = 4096;
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    /* bytes before and after deflating, for chunks that were sent deflated */
+    public static final AtomicLong rawBytes = new AtomicLong();
+    public static final AtomicLong wireBytes = new AtomicLong();
+    public static final AtomicLong deflated = new AtomicLong();
+    public static final AtomicLong skipped = new AtomicLong();
+    public static final AtomicLong deflateNanos = new AtomicLong();
+    public static final AtomicLong inflateNanos = new AtomicLong();
+
+    /* compress: deflate bus in place if it pays, true if it did */
+    public static boolean compress(Bus bus) {
+        if (bus.deflated || bus.size < MIN) return false;
+        long start = System.nanoTime();
+        try {
+            Deflater d = deflaters.get();
+            if (bus.size > PROBE && deflate(d, bus.buffer, PROBE) == null) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            byte[] out = deflate(d, bus.buffer, bus.size);
+            if (out == null) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            rawBytes.addAndGet(bus.size);
+            wireBytes.addAndGet(out.length);
+            deflated.incrementAndGet();
+            bus.rawSize = bus.size;
+            bus.buffer = out;
+            bus.size = out.length;
+            bus.deflated = true;
+            return true;
+        } finally {
+            deflateNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /* deflate the first len bytes of in, null if that does not save
+     * a tenth of them */
+    private static byte[] deflate(Deflater d, byte[] in, int len) {
+        byte[] out = new byte[len - len / 10];
+        d.reset();
+        d.setInput(in, 0, len);
+        d.finish();
+        int n = 0;
+        while (!d.finished() && n < out.length)
+            n += d.deflate(out, n, out.length - n);
+        if (!d.finished()) return null;
+        byte[] ret = new byte[n];
+        System.arraycopy(out, 0, ret, 0, n);
+        return ret;
+    }
+
+    /* expand: undo compress, a bus that was sent as is is left alone */
+    public static void expand(Bus bus) throws IOException {
+        if (!bus.deflated) return;
+        long start = System.nanoTime();
+        Inflater inf = inflaters.get();
+        inf.reset();
+        inf.setInput(bus.buffer, 0, bus.size);
+        byte[] out = new byte[bus.rawSize];
+        int n = 0;
+        try {
+            while (n < out.length && !inf.finished()) {
+                int k = inf.inflate(out, n, out.length - n);
+                if (k == 0 && (inf.needsInput() || inf.needsDictionary()))
+                    break;
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed chunk", e);
+        } finally {
+            inflateNanos.addAndGet(System.nanoTime() - start);
+        }
+        if (n != out.length)
+            throw new IOException("short compressed chunk");
+        bus.buffer = out;
+        bus.size = n;
+        bus.rawSize = 0;
+        bus.deflated = false;
+    }
+
+    public static String report() {
+        long raw = rawBytes.get();
+        long wire = wireBytes.get();
+        return "compression: " + deflated.get() + " chunks deflated, "
+            + skipped.get() + " skipped, " + raw + " -> " + wire + " bytes"
+            + (wire == 0 ? "" : String.format(" (%.1fx)", (double) raw / wire))
+            + ", deflate " + deflateNanos.get() / 1000000 + " ms"
+            + ", inflate " + inflateNanos.get() / 1000000 + " ms";
+    }
+}
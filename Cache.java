@@ -1,8 +1,7 @@
 /* Cache.java:
- *    the cache in each Proxy lru
+ *    the cache in each Proxy, eviction order is up to an EvictionPolicy
  */
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.LinkedList;
 import java.io.File;
 import java.io.*;
 import java.nio.file.Paths;
@@ -14,20 +13,79 @@ public class Cache {
     public ConcurrentHashMap<String, MyFile> fMap;
     // hash map of all pathnames and version, efficient
     public ConcurrentHashMap<String, Long> vMap;
-    // all files in cache
-    public LinkedList<MyFile> queue;
+    /* all master copies that may be evicted, in the policy's order */
+    public EvictionPolicy policy;
+    public int count;      // files in the queue
+    public long queued;    // bytes held by files in the queue
+    public long pinned;    // bytes of queued files that are pinned
+    public long reserved;  // bytes promised to in-flight downloads/copies
+
+    private static final Metrics.Counter EVICTIONS = Metrics.counter("cache.evict");
+    private static final Metrics.Counter EVICTED = Metrics.counter("cache.evict.bytes");
 
     public long size;     // Current Cache Size
     public long limit;    // Cache Size Limits
 
+    // optional RAM tier holding small masters in memory, or null
+    public MemTier mem;
+    // optional on-disk journal of the masters, or null
+    public CacheIndex index;
+
     public Cache(long cacheSize) {
+        this(cacheSize, new LruPolicy());
+    }
+
+    public Cache(long cacheSize, EvictionPolicy policy) {
         limit = cacheSize;
         fMap = new ConcurrentHashMap<String, MyFile>();
         vMap = new ConcurrentHashMap<String, Long>();
-        queue = new LinkedList<MyFile>();
+        this.policy = policy;
+        count = 0;
+        queued = 0;
+        pinned = 0;
+        reserved = 0;
         size = 0;  // initially empty
     }
 
+    /* policy by its command line name: lru, tinylfu, gdsf or lfuda */
+    public static EvictionPolicy policyFor(String name) {
+        if (name.equals("tinylfu")) return new TinyLfuPolicy();
+        if (name.equals("gdsf")) return new GdsfPolicy(false);
+        if (name.equals("lfuda")) return new GdsfPolicy(true);
+        if (!name.equals("lru"))
+            Log.warn("unknown policy " + name + ", using lru");
+        return new LruPolicy();
+    }
+
+    /* queue helpers; a queued file that is pinned is parked in the
+     * policy, see pin, so victim selection never walks over it */
+    private void linkFirst(MyFile f) {
+        policy.add(f);
+        f.queued = true;
+        count++;
+        queued += f.fileSize;
+        if (f.pins > 0) {
+            pinned += f.fileSize;
+            policy.pin(f);
+        }
+    }
+
+    private void unlink(MyFile f) {
+        if (!f.queued) return;
+        if (f.pins > 0)
+            policy.unpin(f);
+        policy.remove(f);
+        f.queued = false;
+        count--;
+        queued -= f.fileSize;
+        if (f.pins > 0) pinned -= f.fileSize;
+    }
+
+    /* an open asked for path, lets the policy count popularity */
+    public synchronized void record(String path) {
+        policy.record(path);
+    }
+
     /* these two functions for checking if cached copy exists */
     public synchronized long findVer(String path) {
         if (vMap.containsKey(path)) return vMap.get(path);
@@ -37,42 +95,112 @@ public class Cache {
         return fMap.get(path);
     }
 
+    /* cache hit check for open: if the master copy of path is at
+     * version ver, mark it recently used and pin it, else null */
+    public synchronized MyFile acquire(String path, long ver) {
+        MyFile f = fMap.get(path);
+        if (f == null || f.version != ver) return null;
+        update(f);
+        if (mem != null && f.mem != null) mem.touch(f);
+        if (index != null) index.use(f);
+        pin(f);
+        return f;
+    }
+
+    /* like acquire, for a master whose lease has not run out */
+    public synchronized MyFile acquireLeased(String path, long now) {
+        MyFile f = fMap.get(path);
+        if (f == null || f.leaseUntil <= now) return null;
+        update(f);
+        if (mem != null && f.mem != null) mem.touch(f);
+        if (index != null) index.use(f);
+        pin(f);
+        return f;
+    }
+
+    /* a peer reads the master of path at version ver: pin it, but
+     * leave its place in the policy to our own clients' uses */
+    public synchronized MyFile share(String path, long ver) {
+        MyFile f = fMap.get(path);
+        if (f == null || f.version != ver) return null;
+        pin(f);
+        return f;
+    }
+
+    /* pinned files are out of the policy's running until unpinned */
+    public synchronized void pin(MyFile f) {
+        if (f.pins++ == 0 && f.queued) {
+            pinned += f.fileSize;
+            policy.pin(f);
+        }
+    }
+    public synchronized void unpin(MyFile f) {
+        if (--f.pins > 0) return;
+        if (f.queued) {
+            pinned -= f.fileSize;
+            policy.unpin(f);
+        }
+        /* last fd on an evicted copy, its disk space goes now */
+        if (f.detached) {
+            size -= f.fileSize;
+            f.closeChannel();
+        }
+    }
 
-    /* push the read/write copies into the cache,
-     * but not to the lru queue, for we are not
-     * gonna evict them */
+
+    /* push a master copy into the maps and count its size */
     public synchronized void push(MyFile file) {
         fMap.put(file.path, file);
         vMap.put(file.path, file.version);
         size += file.fileSize;
         assert(size <= limit);
+        if (index != null) index.put(file);
     }
 
     /* add the master copy into the queue */
     public synchronized void add(MyFile file) {
-        queue.addFirst(file);
+        unlink(file);
+        linkFirst(file);
     }
 
     /* check if cache limit exceeds */
     public synchronized boolean hasSpace(long len) {
-        return (limit >= size + len);
+        return (limit >= size + reserved + len);
+    }
+
+    /* claim len bytes ahead of a download or copy, evicting if needed,
+     * so concurrent opens can not overcommit the cache; the claim is
+     * given back with release once the file has been pushed */
+    public synchronized boolean reserve(long len) {
+        if (!hasSpace(len) && !makeRoom(len))
+            return false;
+        reserved += len;
+        return true;
+    }
+    public synchronized void release(long len) {
+        reserved -= len;
+    }
+
+    /* account len bytes of private copy-on-write blocks */
+    public synchronized boolean charge(long len) {
+        if (!hasSpace(len) && !makeRoom(len))
+            return false;
+        size += len;
+        return true;
+    }
+    public synchronized void discharge(long len) {
+        size -= len;
     }
 
     /* return value: true for actually evicted files,
      *               false for no file could be evicted */
     public synchronized boolean makeRoom(long len) {
         /* if we remove every file but still no space, just return false */
-        System.err.println("evict for no sufficient room ");
-        int toBeRemoved = 0;
-        for (int i = queue.size() - 1; i >= 0; i--) {
-            toBeRemoved += (queue.get(i)).fileSize;
-            if (toBeRemoved >= len)
-                break;
-        }
-        if (toBeRemoved < len) return false;
-        /* LRU eviction */
-        for (int i = queue.size() - 1; i >= 0; i--) {
-            MyFile f = queue.get(i);
+        Log.debug("evict for no sufficient room");
+        if (queued - pinned < len) return false;
+        /* the policy never offers files that are in use */
+        MyFile f;
+        while ((f = policy.victim()) != null) {
             evict(f);
             if (hasSpace(len))
                 return true;
@@ -80,44 +208,40 @@ public class Cache {
         return false;
     }
 
-    /* for updating writing files */
-    public synchronized void cover(String origPath, MyFile newFile) {
-        MyFile orig = lookUp(origPath);
-        File origF = new File(orig.cachePath);
-        origF.delete();
-        size = size - orig.fileSize;
-        try {
-            Files.move(Paths.get(newFile.cachePath), Paths.get(orig.cachePath));
-            File cacheF = new File(newFile.cachePath);
-            cacheF.delete();
-        } catch (IOException e) {
-            System.err.println("error in renaming");
-            e.printStackTrace();
-        }
-        newFile.path = origPath;
-        newFile.cachePath = orig.cachePath;
-        int index = queue.indexOf(orig);
-        queue.remove(index);
-        queue.addFirst(newFile);
-    }
-
     /* evict the file from the cache */
     public synchronized void evict(MyFile f) {
-        size -= f.fileSize;
-        if (queue.indexOf(f) > -1)
-            queue.remove(queue.indexOf(f));
+        unlink(f);
+        if (mem != null) mem.remove(f);
         File file = new File(f.cachePath);
-        System.err.println("Deleting: " + f.cachePath);
+        if (Log.on(Log.DEBUG))
+            Log.debug("Deleting: " + f.cachePath);
+        EVICTIONS.inc();
+        EVICTED.add(f.fileSize);
         file.delete();
-        vMap.remove(f.path);
-        fMap.remove(f.path);
+        if (fMap.remove(f.path, f)) {
+            vMap.remove(f.path);
+            if (index != null) index.remove(f);
+        }
+        /* fds still reading it keep the unlinked file alive,
+         * so its size is only given back by the last unpin */
+        if (f.pins > 0) {
+            f.detached = true;
+        } else {
+            size -= f.fileSize;
+            f.closeChannel();
+        }
     }
 
-    /* most recent used file, move to the lru queue front */
+    /* file used again, tell the policy; a parked file is let back in
+     * for the call, so its standing still counts the use */
     public synchronized void update(MyFile f) {
-        int idx = queue.indexOf(f);
-        if (idx <= 0 || idx >= queue.size()) return;
-        queue.remove(f);
-        queue.addFirst(f);
+        if (!f.queued) return;
+        if (f.pins == 0) {
+            policy.access(f);
+            return;
+        }
+        policy.unpin(f);
+        policy.access(f);
+        policy.pin(f);
     }
 }
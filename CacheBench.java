@@ -0,0 +1,78 @@
+/* CacheBench.java:
+ *    micro-benchmark for the lru bookkeeping in Cache, checks that
+ *    the cost of a hit (update) and of an eviction (makeRoom) stays
+ *    flat as the number of cached entries grows.
+ *
+ *    usage: java CacheBench [entries ...]
+ */
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+public class CacheBench {
+    private static final int ROUNDS = 200000;
+
+    /* fill a cache with n master copies of one byte each */
+    private static MyFile[] fill(Cache cache, int n) {
+        MyFile[] files = new MyFile[n];
+        for (int i = 0; i < n; i++) {
+            String p = "bench_" + i;
+            MyFile f = new MyFile(p, "/nonexistent/" + p, p);
+            f.fileSize = 1;
+            files[i] = f;
+            cache.push(f);
+            cache.add(f);
+        }
+        return files;
+    }
+
+    /* ns per update() on random entries */
+    private static double hit(int n) {
+        Cache cache = new Cache(n);
+        MyFile[] files = fill(cache, n);
+        Random rand = new Random(n);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++)
+            cache.update(files[rand.nextInt(n)]);
+        return (double)(System.nanoTime() - start) / ROUNDS;
+    }
+
+    /* ns per add() that forces makeRoom() to evict the lru tail */
+    private static double evict(int n) {
+        Cache cache = new Cache(n);
+        fill(cache, n);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            String p = "fresh_" + i;
+            MyFile f = new MyFile(p, "/nonexistent/" + p, p);
+            f.fileSize = 1;
+            if (!cache.hasSpace(f.fileSize))
+                cache.makeRoom(f.fileSize);
+            cache.push(f);
+            cache.add(f);
+        }
+        return (double)(System.nanoTime() - start) / ROUNDS;
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {1000, 10000, 100000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+        /* the cache logs every eviction, keep that out of the timing */
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            public void write(int b) {}
+        }));
+        /* warm up the jit on the largest size */
+        hit(sizes[sizes.length - 1]);
+        evict(sizes[sizes.length - 1]);
+        for (int n : sizes) {
+            System.out.printf("entries %8d   hit %8.1f ns   evict %8.1f ns%n",
+                    n, hit(n), evict(n));
+        }
+        System.setErr(err);
+    }
+}
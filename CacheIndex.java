@@ -0,0 +1,210 @@
+/* CacheIndex.java:
+ *    on-disk journal of the master copies under cacheRoot, so a
+ *    restarted proxy comes back with a warm cache. Every line is one
+ *    record, tab separated:
+ *        P version size origPath   a master was pushed
+ *        U path                    a master was used
+ *        D path                    a master was evicted
+ *    Replaying the records gives the masters and their recency. Puts
+ *    and deletes are flushed at once, uses ride along with the next
+ *    flush, losing a few only costs recency. The journal is rewritten
+ *    as a snapshot once it grows well past the number of masters.
+ *    All calls except load are made with the Cache lock held.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class CacheIndex {
+    public static final String NAME = ".proxy_index";
+
+    private static class Entry {
+        String origPath;
+        long version;
+        long size;
+    }
+
+    private final String dir;
+    private final String file;
+    /* live masters by flattened path, least recently used first */
+    private final LinkedHashMap<String, Entry> entries
+        = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private Writer out;
+    private int records;
+
+    public CacheIndex(String dir) {
+        this.dir = dir;
+        this.file = dir + "/" + NAME;
+    }
+
+    /* load: replay the journal into cache, drop the proxy's own
+     * leftovers from the cache dir, and start a fresh journal. The
+     * masters come back unpinned and are revalidated by the version
+     * check of their next open like any other cached copy. */
+    public void load(Cache cache) {
+        File f = new File(file);
+        boolean read = false;
+        if (f.exists()) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(f), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null)
+                    replay(line);
+                in.close();
+                read = true;
+            } catch (IOException e) {
+                Log.error("cache index unreadable, starting cold", e);
+                entries.clear();
+            }
+        }
+
+        /* masters the journal listed but that are not kept */
+        ArrayList<String> dropped = new ArrayList<String>();
+
+        /* a master only counts if its file is there in full, masters
+         * that only lived in the RAM tier are gone */
+        Iterator<java.util.Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            java.util.Map.Entry<String, Entry> e = it.next();
+            File cf = new File(dir, e.getKey());
+            if (!cf.isFile() || cf.length() != e.getValue().size) {
+                dropped.add(e.getKey());
+                it.remove();
+            }
+        }
+
+        /* keep the most recent ones that fit the cache */
+        ArrayList<String> keys = new ArrayList<String>(entries.keySet());
+        ArrayList<String> kept = new ArrayList<String>();
+        long total = 0;
+        for (int i = keys.size() - 1; i >= 0; i--) {
+            long len = entries.get(keys.get(i)).size;
+            if (total + len > cache.limit) {
+                dropped.add(keys.get(i));
+                entries.remove(keys.get(i));
+                continue;
+            }
+            total += len;
+            kept.add(keys.get(i));
+        }
+        Collections.reverse(kept);
+
+        /* our own strays: copies of fds, downloads cut off midway,
+         * masters that no longer fit. Without a journal we cannot tell
+         * our files from the user's, so nothing is touched. */
+        File[] files = read ? new File(dir).listFiles() : null;
+        if (files != null) {
+            for (File cf : files) {
+                String name = cf.getName();
+                if (cf.isFile() && !entries.containsKey(name)
+                    && (name.contains("_write_") || name.contains("_dl_"))) {
+                    Log.debug("Deleting stray: " + cf.getPath());
+                    cf.delete();
+                }
+            }
+            for (String path : dropped) {
+                Log.debug("Deleting dropped master: " + path);
+                new File(dir, path).delete();
+            }
+        }
+
+        /* oldest first, so the queue ends up in the same order */
+        for (String path : kept) {
+            Entry e = entries.get(path);
+            MyFile m = new MyFile(path, new File(dir, path).getPath(), e.origPath);
+            m.version = e.version;
+            m.fileSize = e.size;
+            cache.push(m);
+            cache.add(m);
+        }
+        Log.info("cache index: " + entries.size() + " masters, "
+                 + total + " bytes");
+        compact();
+    }
+
+    private void replay(String line) {
+        String[] r = line.split("\t", 4);
+        try {
+            if (r[0].equals("P") && r.length == 4) {
+                Entry e = new Entry();
+                e.version = Long.parseLong(r[1]);
+                e.size = Long.parseLong(r[2]);
+                e.origPath = r[3];
+                entries.remove(e.origPath.replace('/', '_'));
+                entries.put(e.origPath.replace('/', '_'), e);
+            } else if (r[0].equals("U") && r.length == 2) {
+                entries.get(r[1]);
+            } else if (r[0].equals("D") && r.length == 2) {
+                entries.remove(r[1]);
+            }
+        } catch (NumberFormatException e) {
+            /* a torn last line, the rest still holds */
+        }
+    }
+
+    public void put(MyFile f) {
+        Entry e = new Entry();
+        e.origPath = f.origPath;
+        e.version = f.version;
+        e.size = f.fileSize;
+        entries.remove(f.path);
+        entries.put(f.path, e);
+        append("P\t" + f.version + "\t" + f.fileSize + "\t" + f.origPath, true);
+    }
+
+    public void use(MyFile f) {
+        if (entries.get(f.path) != null)
+            append("U\t" + f.path, false);
+    }
+
+    public void remove(MyFile f) {
+        if (entries.remove(f.path) != null)
+            append("D\t" + f.path, true);
+    }
+
+    private void append(String record, boolean flush) {
+        if (out == null) return;
+        try {
+            out.write(record);
+            out.write('\n');
+            if (flush) out.flush();
+        } catch (IOException e) {
+            Log.error("cache index write failed, no longer kept", e);
+            out = null;
+            return;
+        }
+        if (++records > 2 * entries.size() + 1024)
+            compact();
+    }
+
+    /* write the live masters, oldest first, and switch to it */
+    private void compact() {
+        try {
+            if (out != null) out.close();
+            String tmp = file + ".tmp";
+            Writer w = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), StandardCharsets.UTF_8));
+            for (java.util.Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry v = e.getValue();
+                w.write("P\t" + v.version + "\t" + v.size + "\t" + v.origPath + "\n");
+            }
+            w.close();
+            Files.move(Paths.get(tmp), Paths.get(file),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            records = entries.size();
+        } catch (IOException e) {
+            Log.error("cache index write failed, no longer kept", e);
+            out = null;
+        }
+    }
+}
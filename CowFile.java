@@ -0,0 +1,157 @@
+/* CowFile.java:
+ *    copy-on-write view of a master copy for one open fd. Blocks the
+ *    fd never wrote are read from the shared master, blocks it wrote
+ *    are kept in a private block file, so opening costs the same for
+ *    any file size and a writer only uses cache space for what it
+ *    changed. When the master is memory mapped, reads of blocks the fd
+ *    did not write are plain copies out of the shared mapping.
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+public class CowFile {
+    public static final int BLOCK = 64 * 1024;
+
+    private FileChannel base;       // the master copy, shared, read only
+    private ByteBuffer map;         // its mapping, or null to read the channel
+    private long baseLength;
+    private String privPath;        // where written blocks go
+    private RandomAccessFile priv;  // created on the first write
+    private FileChannel privCh;
+    // block index -> offset of its private copy in the block file
+    private HashMap<Long, Long> blocks;
+    private long nextSlot;
+    private long length;            // logical length seen through this fd
+
+    public CowFile(FileChannel base, ByteBuffer map, long baseLength, String privPath) {
+        this.base = base;
+        this.map = map;
+        this.baseLength = baseLength;
+        this.privPath = privPath;
+        this.blocks = new HashMap<Long, Long>();
+        this.nextSlot = 0;
+        this.length = baseLength;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /* bytes held in the private block file */
+    public long privateBytes() {
+        return nextSlot;
+    }
+
+    /* number of blocks a write of len bytes at pos would have to copy */
+    public int newBlocks(long pos, int len) {
+        if (len <= 0) return 0;
+        int n = 0;
+        for (long b = pos / BLOCK; b <= (pos + len - 1) / BLOCK; b++) {
+            if (!blocks.containsKey(b)) n++;
+        }
+        return n;
+    }
+
+    /* read up to len bytes at pos, -1 at end of file */
+    public int read(long pos, byte[] buf, int off, int len) throws IOException {
+        if (pos >= length) return -1;
+        len = (int)Math.min(len, length - pos);
+        if (blocks.isEmpty()) {
+            readBase(pos, buf, off, len);
+            return len;
+        }
+        int done = 0;
+        while (done < len) {
+            long p = pos + done;
+            long b = p / BLOCK;
+            int in = (int)(p % BLOCK);
+            int n = Math.min(len - done, BLOCK - in);
+            Long slot = blocks.get(b);
+            if (slot != null) {
+                readFully(privCh, slot + in, buf, off + done, n);
+            } else {
+                readBase(p, buf, off + done, n);
+            }
+            done += n;
+        }
+        return len;
+    }
+
+    /* write len bytes at pos, copying each touched block out of the
+     * master the first time */
+    public void write(long pos, byte[] buf, int off, int len) throws IOException {
+        if (priv == null) {
+            priv = new RandomAccessFile(privPath, "rw");
+            privCh = priv.getChannel();
+        }
+        int done = 0;
+        while (done < len) {
+            long p = pos + done;
+            long b = p / BLOCK;
+            int in = (int)(p % BLOCK);
+            int n = Math.min(len - done, BLOCK - in);
+            Long slot = blocks.get(b);
+            if (slot == null) {
+                slot = nextSlot;
+                nextSlot += BLOCK;
+                if (n < BLOCK) {
+                    byte[] old = new byte[BLOCK];
+                    readBase(b * BLOCK, old, 0, BLOCK);
+                    writeFully(privCh, slot, old, 0, BLOCK);
+                }
+                blocks.put(b, slot);
+            }
+            writeFully(privCh, slot + in, buf, off + done, n);
+            done += n;
+        }
+        length = Math.max(length, pos + len);
+    }
+
+    /* drop the private blocks, the master is left open for others */
+    public void close() throws IOException {
+        if (priv != null) {
+            priv.close();
+            priv = null;
+            privCh = null;
+            new File(privPath).delete();
+        }
+        blocks.clear();
+    }
+
+    /* read from the master, anything past its end reads as zeros */
+    private void readBase(long pos, byte[] buf, int off, int len) throws IOException {
+        int n = (int)Math.max(0, Math.min(len, baseLength - pos));
+        if (n > 0 && map != null) {
+            ByteBuffer src = map.duplicate();
+            src.position((int)pos);
+            src.get(buf, off, n);
+        } else if (n > 0) {
+            readFully(base, pos, buf, off, n);
+        }
+        for (int i = n; i < len; i++)
+            buf[off + i] = 0;
+    }
+
+    private static void readFully(FileChannel ch, long pos, byte[] buf, int off, int len)
+        throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+        while (bb.hasRemaining()) {
+            int n = ch.read(bb, pos + bb.position() - off);
+            if (n < 0) {
+                /* short master, treat the rest as a hole */
+                while (bb.hasRemaining()) bb.put((byte)0);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel ch, long pos, byte[] buf, int off, int len)
+        throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+        while (bb.hasRemaining())
+            ch.write(bb, pos + bb.position() - off);
+    }
+}
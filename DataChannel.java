@@ -0,0 +1,177 @@
+/* DataChannel.java:
+ *    bulk data path between server and proxy, next to the rmi calls
+ *    that carry the metadata. A request names a file, its version, an
+ *    offset and a length; the server replies with the number of bytes it is going
+ *    to send and then streams them straight from the file with
+ *    transferTo, the proxy lands them in the cache file with
+ *    transferFrom. No chunk is ever copied into a java array.
+ */
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+
+public class DataChannel {
+    private static final Metrics.Counter SENT = Metrics.counter("bytes.sent");
+    // reply count for a request the server refuses
+    public static final long REFUSED = -1;
+
+    /* serve: accept data connections for server on port, one thread
+     * per connection, each connection may carry many requests */
+    public static void serve(final Server server, int port) throws IOException {
+        final ServerSocketChannel listen = ServerSocketChannel.open();
+        listen.socket().setReuseAddress(true);
+        listen.socket().bind(new InetSocketAddress(port));
+        final ExecutorService workers = Executors.newCachedThreadPool();
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        final SocketChannel sock = listen.accept();
+                        workers.execute(new Runnable() {
+                            public void run() {
+                                handle(server, sock);
+                            }
+                        });
+                    } catch (IOException e) {
+                        Log.error("data channel accept failed", e);
+                    }
+                }
+            }
+        }, "data-accept");
+        acceptor.start();
+        Log.info("Data channel on port " + port);
+    }
+
+    /* handle: answer requests on one connection until the proxy hangs up */
+    private static void handle(Server server, SocketChannel sock) {
+        ByteBuffer head = ByteBuffer.allocate(8);
+        try {
+            while (true) {
+                String path;
+                long version, offset, len;
+                try {
+                    path = readString(sock);
+                    version = readLong(sock);
+                    offset = readLong(sock);
+                    len = readLong(sock);
+                } catch (EOFException e) {
+                    break;
+                }
+                File f = server.checkedFile(path);
+                if (f == null || !f.isFile()) {
+                    writeLong(sock, head, REFUSED);
+                    continue;
+                }
+                /* every range of a download reads the same version, or
+                 * is refused once it is gone. The lock is only held to
+                 * pick the handle: its refs keep the channel open and a
+                 * commit renames a new file in rather than writing this
+                 * one, so a slow proxy never holds up the server's writes */
+                Lock rl = server.readLockFor(f.getPath());
+                HandlePool.Handle h;
+                rl.lock();
+                try {
+                    h = server.acquireHandle(f.getPath(), version);
+                } finally {
+                    rl.unlock();
+                }
+                if (h == null) {
+                    writeLong(sock, head, REFUSED);
+                    continue;
+                }
+                try {
+                    FileChannel fc = h.ch;
+                    long count = Math.max(0, Math.min(len, h.size - offset));
+                    writeLong(sock, head, count);
+                    long sent = 0;
+                    while (sent < count) {
+                        long n = fc.transferTo(offset + sent, count - sent, sock);
+                        /* the file shrank under us, the proxy sees a short read */
+                        if (n <= 0) throw new EOFException("file truncated: " + path);
+                        sent += n;
+                    }
+                    SENT.add(count);
+                } finally {
+                    server.releaseHandle(h);
+                }
+            }
+        } catch (IOException e) {
+            Log.error("data channel error", e);
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                Log.error("closing data connection failed", e);
+            }
+        }
+    }
+
+    /* fetch: copy len bytes at offset of version of the server file
+     * path into dst at the same offset, returns the number of bytes
+     * copied */
+    public static long fetch(String host, int port, String path, long version,
+                             long offset, long len, FileChannel dst) throws IOException {
+        SocketChannel sock = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            byte[] name = path.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer req = ByteBuffer.allocate(4 + name.length + 24);
+            req.putInt(name.length).put(name).putLong(version).putLong(offset).putLong(len);
+            req.flip();
+            while (req.hasRemaining())
+                sock.write(req);
+
+            long count = readLong(sock);
+            if (count == REFUSED)
+                throw new IOException("server refused " + path);
+            long got = 0;
+            while (got < count) {
+                long n = dst.transferFrom(sock, offset + got, count - got);
+                if (n <= 0) throw new EOFException("short transfer for " + path);
+                got += n;
+            }
+            return got;
+        } finally {
+            sock.close();
+        }
+    }
+
+    private static void readFully(SocketChannel sock, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (sock.read(buf) < 0) throw new EOFException();
+        }
+        buf.flip();
+    }
+
+    private static long readLong(SocketChannel sock) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        readFully(sock, buf);
+        return buf.getLong();
+    }
+
+    private static String readString(SocketChannel sock) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        readFully(sock, len);
+        int n = len.getInt();
+        if (n < 0 || n > 4096) throw new IOException("bad path length " + n);
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        readFully(sock, buf);
+        return new String(buf.array(), 0, n, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLong(SocketChannel sock, ByteBuffer buf, long v) throws IOException {
+        buf.clear();
+        buf.putLong(v);
+        buf.flip();
+        while (buf.hasRemaining())
+            sock.write(buf);
+    }
+}
@@ -0,0 +1,208 @@
+/* Delta.java:
+ *    rsync style delta transfer. The proxy cuts its stale copy into
+ *    blocks and sends a Signature: a rolling checksum and an MD5 of
+ *    every block. The server slides a window over the new version,
+ *    rolling the checksum one byte at a time, and where window and
+ *    block agree on both sums it emits a copy of that block instead of
+ *    the bytes. The proxy replays the Script against its stale copy.
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class Delta {
+    // ops a script may hold, each costs 16 bytes on the wire
+    public static final int MAX_OPS = 1 << 16;
+
+    /* block checksums of a copy */
+    public static class Signature implements java.io.Serializable {
+        public int blockSize;
+        public long length;
+        public int[] weak;
+        public byte[][] strong;
+    }
+
+    /* one step of the rebuild: len bytes copied from offset in the old
+     * copy, or the literal bytes in data */
+    public static class Op implements java.io.Serializable {
+        public long from;
+        public int len;
+        public byte[] data;
+    }
+
+    /* how to build the new version out of the old one */
+    public static class Script implements java.io.Serializable {
+        public long length;
+        public long literal;   // bytes sent as data
+        public ArrayList<Op> ops = new ArrayList<Op>();
+    }
+
+    /* about sqrt(length), a power of two between 2KB and 64KB */
+    public static int blockSize(long length) {
+        int bs = 2048;
+        while (bs < 65536 && (long)bs * bs < length)
+            bs <<= 1;
+        return bs;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] strong(MessageDigest md, ByteBuffer data, int pos, int len) {
+        ByteBuffer b = data.duplicate();
+        b.limit(pos + len);
+        b.position(pos);
+        md.reset();
+        md.update(b);
+        return md.digest();
+    }
+
+    /* rsync's weak sum: a is the byte sum, b the sum of the running a */
+    private static int weak(ByteBuffer data, int pos, int len) {
+        int a = 0, b = 0;
+        for (int i = 0; i < len; i++) {
+            a += data.get(pos + i) & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /* signature of the whole of data, only full blocks are matchable */
+    public static Signature signature(ByteBuffer data) {
+        Signature sig = new Signature();
+        int n = data.limit();
+        sig.length = n;
+        sig.blockSize = blockSize(n);
+        int blocks = n / sig.blockSize;
+        sig.weak = new int[blocks];
+        sig.strong = new byte[blocks][];
+        MessageDigest md = md5();
+        for (int i = 0; i < blocks; i++) {
+            int pos = i * sig.blockSize;
+            sig.weak[i] = weak(data, pos, sig.blockSize);
+            sig.strong[i] = strong(md, data, pos, sig.blockSize);
+        }
+        return sig;
+    }
+
+    /* script: turn the copy described by sig into data, null once the
+     * literal bytes would pass maxLiteral or the ops MAX_OPS */
+    public static Script script(Signature sig, ByteBuffer data, long maxLiteral) {
+        int bs = sig.blockSize;
+        HashMap<Integer, ArrayList<Integer>> blocks = new HashMap<Integer, ArrayList<Integer>>();
+        for (int i = 0; i < sig.weak.length; i++) {
+            ArrayList<Integer> l = blocks.get(sig.weak[i]);
+            if (l == null) {
+                l = new ArrayList<Integer>(1);
+                blocks.put(sig.weak[i], l);
+            }
+            l.add(i);
+        }
+        Script s = new Script();
+        int n = data.limit();
+        s.length = n;
+        MessageDigest md = md5();
+        int lit = 0;    // start of the literal run not emitted yet
+        int pos = 0;
+        int a = 0, b = 0;
+        boolean fresh = true;
+        while (pos + bs <= n && !blocks.isEmpty()) {
+            if (fresh) {
+                int w = weak(data, pos, bs);
+                a = w & 0xffff;
+                b = w >>> 16;
+                fresh = false;
+            }
+            int match = -1;
+            ArrayList<Integer> cands = blocks.get((a & 0xffff) | (b << 16));
+            if (cands != null) {
+                byte[] h = strong(md, data, pos, bs);
+                for (int c : cands) {
+                    if (Arrays.equals(h, sig.strong[c])) {
+                        match = c;
+                        break;
+                    }
+                }
+            }
+            if (match >= 0) {
+                if (!literal(s, data, lit, pos, maxLiteral)) return null;
+                if (!copy(s, (long)match * bs, bs)) return null;
+                pos += bs;
+                lit = pos;
+                fresh = true;
+                continue;
+            }
+            /* roll the window one byte on */
+            if (pos + bs < n) {
+                int out = data.get(pos) & 0xff;
+                int in = data.get(pos + bs) & 0xff;
+                a = (a - out + in) & 0xffff;
+                b = (b - bs * out + a) & 0xffff;
+            }
+            pos++;
+        }
+        if (!literal(s, data, lit, n, maxLiteral)) return null;
+        return s;
+    }
+
+    private static boolean copy(Script s, long from, int len) {
+        if (!s.ops.isEmpty()) {
+            Op last = s.ops.get(s.ops.size() - 1);
+            if (last.data == null && last.from + last.len == from
+                && (long)last.len + len <= Integer.MAX_VALUE) {
+                last.len += len;
+                return true;
+            }
+        }
+        if (s.ops.size() >= MAX_OPS) return false;
+        Op op = new Op();
+        op.from = from;
+        op.len = len;
+        s.ops.add(op);
+        return true;
+    }
+
+    private static boolean literal(Script s, ByteBuffer data, int from, int to,
+                                   long maxLiteral) {
+        if (to <= from) return true;
+        s.literal += to - from;
+        if (s.literal > maxLiteral || s.ops.size() >= MAX_OPS) return false;
+        Op op = new Op();
+        op.len = to - from;
+        op.data = new byte[op.len];
+        ByteBuffer src = data.duplicate();
+        src.position(from);
+        src.get(op.data);
+        s.ops.add(op);
+        return true;
+    }
+
+    /* apply: write the new version into dst, copying from old */
+    public static void apply(Script s, ByteBuffer old, FileChannel dst) throws IOException {
+        long pos = 0;
+        for (Op op : s.ops) {
+            ByteBuffer src;
+            if (op.data != null) {
+                src = ByteBuffer.wrap(op.data);
+            } else {
+                src = old.duplicate();
+                src.limit((int)(op.from + op.len));
+                src.position((int)op.from);
+            }
+            while (src.hasRemaining())
+                pos += dst.write(src, pos);
+        }
+        if (pos != s.length)
+            throw new IOException("delta rebuilt " + pos + " of " + s.length + " bytes");
+    }
+}
@@ -0,0 +1,29 @@
+/* EvictionPolicy.java:
+ *    the replacement policy behind Cache, it keeps the queued master
+ *    copies in its own order and picks which one makeRoom gives up
+ *    next. Every call is made with the Cache lock held.
+ */
+public interface EvictionPolicy {
+    /* an open asked for path, hit or miss */
+    void record(String path);
+
+    /* f entered the queue */
+    void add(MyFile f);
+
+    /* f was used again */
+    void access(MyFile f);
+
+    /* f left the queue */
+    void remove(MyFile f);
+
+    /* f got its first pin: it keeps its standing but is not offered
+     * as a victim until unpin; Cache makes no other call on it till then */
+    void pin(MyFile f);
+
+    /* f lost its last pin and may be evicted again */
+    void unpin(MyFile f);
+
+    /* the next file to evict, null if none; pinned files are out of
+     * the running, so this never has to step over them */
+    MyFile victim();
+}
@@ -0,0 +1,53 @@
+/* Extents.java:
+ *    set of byte ranges [start, end) in a file, kept sorted and
+ *    merged, used to remember what a write copy changed
+ */
+import java.util.Map;
+import java.util.TreeMap;
+
+public class Extents {
+    // start -> end of each range, ranges never overlap or touch
+    private TreeMap<Long, Long> ranges;
+
+    public Extents() {
+        ranges = new TreeMap<Long, Long>();
+    }
+
+    /* mark [start, end) */
+    public synchronized void add(long start, long end) {
+        if (start >= end) return;
+        Map.Entry<Long, Long> e = ranges.floorEntry(start);
+        if (e != null && e.getValue() >= start) {
+            start = e.getKey();
+            end = Math.max(end, e.getValue());
+        }
+        e = ranges.ceilingEntry(start);
+        while (e != null && e.getKey() <= end) {
+            end = Math.max(end, e.getValue());
+            ranges.remove(e.getKey());
+            e = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    public synchronized boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /* total bytes covered */
+    public synchronized long bytes() {
+        long n = 0;
+        for (Map.Entry<Long, Long> e : ranges.entrySet())
+            n += e.getValue() - e.getKey();
+        return n;
+    }
+
+    /* the ranges as {start, end} pairs, in file order */
+    public synchronized long[][] toArray() {
+        long[][] out = new long[ranges.size()][];
+        int i = 0;
+        for (Map.Entry<Long, Long> e : ranges.entrySet())
+            out[i++] = new long[] {e.getKey(), e.getValue()};
+        return out;
+    }
+}
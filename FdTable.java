@@ -0,0 +1,89 @@
+/* FdTable.java:
+ *    one client's open fds. Slot i of the arrays is fd BASE + i and
+ *    records what the fd is, a file view or a directory; closed slots
+ *    go on a free list and are handed out again first, so the table
+ *    only grows to the most fds the client ever had open at once and
+ *    a lookup is an index into an array, no boxing and no search.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FdTable {
+    // fds below this are the client's own, see Proxy
+    public static final int BASE = 65;
+    public static final byte FREE = 0;
+    public static final byte FILE = 1;
+    public static final byte DIR = 2;
+
+    private MyFile[] files = new MyFile[16];
+    private byte[] kinds = new byte[16];
+    private int[] free = new int[16];   // stack of closed slots
+    private int nFree;
+    private int used;                   // slots handed out so far
+
+    /* a new fd for the file view f */
+    public synchronized int open(MyFile f) {
+        int slot = slot();
+        files[slot] = f;
+        kinds[slot] = FILE;
+        return BASE + slot;
+    }
+
+    /* a new fd for a directory */
+    public synchronized int openDir() {
+        int slot = slot();
+        kinds[slot] = DIR;
+        return BASE + slot;
+    }
+
+    private int slot() {
+        if (nFree > 0)
+            return free[--nFree];
+        if (used == files.length) {
+            files = Arrays.copyOf(files, used * 2);
+            kinds = Arrays.copyOf(kinds, used * 2);
+        }
+        return used++;
+    }
+
+    /* FREE, FILE or DIR */
+    public synchronized byte kind(int fd) {
+        int slot = fd - BASE;
+        return (slot < 0 || slot >= used) ? FREE : kinds[slot];
+    }
+
+    /* the file view of fd, null if fd is not an open file */
+    public synchronized MyFile get(int fd) {
+        int slot = fd - BASE;
+        return (slot < 0 || slot >= used) ? null : files[slot];
+    }
+
+    /* close fd, returns its file view; null for a directory as for
+     * a bad fd, ask kind(fd) first to tell them apart */
+    public synchronized MyFile remove(int fd) {
+        int slot = fd - BASE;
+        if (slot < 0 || slot >= used || kinds[slot] == FREE)
+            return null;
+        MyFile f = files[slot];
+        files[slot] = null;
+        kinds[slot] = FREE;
+        if (nFree == free.length)
+            free = Arrays.copyOf(free, nFree * 2);
+        free[nFree++] = slot;
+        return f;
+    }
+
+    /* close every fd, returns the file views that were open */
+    public synchronized List<MyFile> clear() {
+        ArrayList<MyFile> open = new ArrayList<MyFile>();
+        for (int slot = 0; slot < used; slot++)
+            if (files[slot] != null)
+                open.add(files[slot]);
+        Arrays.fill(files, 0, used, null);
+        Arrays.fill(kinds, 0, used, FREE);
+        used = 0;
+        nFree = 0;
+        return open;
+    }
+}
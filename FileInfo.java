@@ -13,6 +13,11 @@ public class FileInfo implements java.io.Serializable {
     public boolean canWrite;
     public String sPath;
     public String path;
+    public int dataPort;     // server's bulk data port, 0 for rmi only
+    public String dataHost;  // host of that port when sharded, else null
+    public Bus data;         // contents sent along by validate, from offset 0
+    public long lease;       // ms the proxy may use this version unchecked
+    public boolean compress; // server: chunks may be deflated; proxy: send them so
 
     public FileInfo() {
         this.size = 0;
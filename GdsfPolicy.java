@@ -0,0 +1,72 @@
+/* GdsfPolicy.java:
+ *    Greedy-Dual-Size-Frequency: each file has the priority
+ *    L + freq * cost / size and the lowest goes first, L is raised to
+ *    the priority of every victim so files that stopped being used
+ *    age out. With cost 1 small files are favoured, which is best for
+ *    the hit ratio; with cost = size it becomes LFU with dynamic aging
+ *    (lfuda), which is best for the byte hit ratio.
+ */
+import java.util.Comparator;
+import java.util.TreeSet;
+
+public class GdsfPolicy implements EvictionPolicy {
+    private final boolean sizeCost;
+    private final TreeSet<MyFile> queue = new TreeSet<MyFile>(
+        new Comparator<MyFile>() {
+            public int compare(MyFile a, MyFile b) {
+                int c = Double.compare(a.prio, b.prio);
+                if (c != 0) return c;
+                return Long.compare(a.seq, b.seq);
+            }
+        });
+    private double inflation;   // L
+    private long seq;
+
+    public GdsfPolicy(boolean sizeCost) {
+        this.sizeCost = sizeCost;
+    }
+
+    public void record(String path) {
+    }
+
+    private void rank(MyFile f) {
+        double size = Math.max(1, f.fileSize);
+        double cost = sizeCost ? size : 1;
+        f.prio = inflation + f.freq * cost / size;
+        f.seq = seq++;
+    }
+
+    public void add(MyFile f) {
+        f.freq = 1;
+        rank(f);
+        queue.add(f);
+    }
+
+    public void access(MyFile f) {
+        queue.remove(f);
+        f.freq++;
+        rank(f);
+        queue.add(f);
+    }
+
+    public void remove(MyFile f) {
+        queue.remove(f);
+    }
+
+    /* out of the queue while in use, its priority is kept */
+    public void pin(MyFile f) {
+        queue.remove(f);
+    }
+
+    public void unpin(MyFile f) {
+        queue.add(f);
+    }
+
+    public MyFile victim() {
+        if (queue.isEmpty())
+            return null;
+        MyFile f = queue.first();
+        inflation = f.prio;
+        return f;
+    }
+}
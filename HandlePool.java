@@ -0,0 +1,222 @@
+/* HandlePool.java:
+ *    bounded pool of open read handles on server files, keyed by path
+ *    and version, so a download opens the file once instead of once
+ *    per chunk. Files up to MAP_LIMIT are memory mapped and a chunk
+ *    read is a copy out of the mapping.
+ *
+ *    A mapped file must not shrink while a chunk is copied out of it,
+ *    so readers hold the path's read lock and the server takes the
+ *    write lock around its own writes, see lockFor.
+ *
+ *    A file replaced by a rename keeps its handle as the previous
+ *    version, so downloads that started on it finish on the same
+ *    bytes, see supersede and acquireAt.
+ *
+ *    A handle that leaves the pool is closed, and its mapping is
+ *    unmapped, once the last reader has released it. A renamed-over
+ *    or unlinked file's blocks are freed then, not whenever the
+ *    collector gets to the buffer.
+ */
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class HandlePool {
+    public static final int MAX_HANDLES = 256;
+    public static final long MAP_LIMIT = 1L << 30;
+    private static final int STRIPES = 64;
+
+    /* Unsafe.invokeCleaner and its receiver, looked up by name as the
+     * only way to unmap before the collector does; null without it */
+    private static final Object UNSAFE;
+    private static final Method CLEANER;
+    static {
+        Object unsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            cleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            Log.info("no unmapping, mappings go with the collector");
+        }
+        UNSAFE = unsafe;
+        CLEANER = cleaner;
+    }
+
+    /* one open file at one version */
+    public static class Handle {
+        public final String sPath;
+        public final long version;
+        public final long size;
+        public final FileChannel ch;
+        private final MappedByteBuffer map;   // null for big files
+        private int refs;
+        private boolean retired;
+
+        Handle(String sPath, long version) throws IOException {
+            this.sPath = sPath;
+            this.version = version;
+            this.ch = FileChannel.open(Paths.get(sPath), StandardOpenOption.READ);
+            this.size = ch.size();
+            this.map = (size > 0 && size <= MAP_LIMIT)
+                ? ch.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+        }
+
+        /* read up to len bytes at offset, returns the count */
+        public int read(long offset, byte[] buf, int len) throws IOException {
+            int n = (int)Math.max(0, Math.min(len, size - offset));
+            if (map != null) {
+                ByteBuffer src = map.duplicate();
+                src.position((int)offset);
+                src.get(buf, 0, n);
+                return n;
+            }
+            ByteBuffer dst = ByteBuffer.wrap(buf, 0, n);
+            while (dst.hasRemaining()) {
+                if (ch.read(dst, offset + dst.position()) < 0) break;
+            }
+            return dst.position();
+        }
+
+        /* the whole file as a buffer, null if it is not mapped; good
+         * only until the handle is released */
+        public ByteBuffer mapped() {
+            return map == null ? null : map.duplicate();
+        }
+
+        /* only once no reader holds the handle, the mapping goes too */
+        private void close() {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                Log.error("closing " + sPath + " failed", e);
+            }
+            if (map != null && CLEANER != null) {
+                try {
+                    CLEANER.invoke(UNSAFE, map);
+                } catch (Exception e) {
+                    Log.warn("unmapping " + sPath + " failed: " + e);
+                }
+            }
+        }
+    }
+
+    private LinkedHashMap<String, Handle> handles;
+    /* handles of files replaced by a rename, oldest first */
+    private LinkedHashMap<String, Handle> previous;
+    private ReentrantReadWriteLock[] locks;
+
+    public HandlePool() {
+        handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+        previous = new LinkedHashMap<String, Handle>();
+        locks = new ReentrantReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new ReentrantReadWriteLock();
+    }
+
+    /* lock guarding the mapped contents of sPath */
+    public ReentrantReadWriteLock lockFor(String sPath) {
+        return locks[(sPath.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /* a handle on sPath at version, opened if not pooled, must be
+     * given back with release */
+    public Handle acquire(String sPath, long version) throws IOException {
+        synchronized (this) {
+            Handle h = handles.get(sPath);
+            if (h != null && h.version == version) {
+                h.refs++;
+                return h;
+            }
+        }
+        /* open outside the pool lock, someone may beat us to it */
+        Handle fresh = new Handle(sPath, version);
+        synchronized (this) {
+            Handle h = handles.get(sPath);
+            if (h != null && h.version == version) {
+                fresh.close();
+                h.refs++;
+                return h;
+            }
+            if (h != null)
+                retire(h);
+            fresh.refs++;
+            handles.put(sPath, fresh);
+            trim();
+            return fresh;
+        }
+    }
+
+    /* a handle on sPath at exactly version, current or previous,
+     * or null if neither is pooled */
+    public synchronized Handle acquireAt(String sPath, long version) {
+        Handle h = handles.get(sPath);
+        if (h == null || h.version != version)
+            h = previous.get(sPath);
+        if (h == null || h.version != version)
+            return null;
+        h.refs++;
+        return h;
+    }
+
+    public synchronized void release(Handle h) {
+        if (--h.refs == 0 && h.retired)
+            h.close();
+    }
+
+    /* drop the handles of sPath, the file is about to change */
+    public synchronized void invalidate(String sPath) {
+        Handle h = handles.remove(sPath);
+        if (h != null)
+            retire(h);
+        h = previous.remove(sPath);
+        if (h != null)
+            retire(h);
+    }
+
+    /* sPath was renamed over: its handle still reads the old file,
+     * keep it as the previous version in place of an older one */
+    public synchronized void supersede(String sPath) {
+        Handle h = handles.remove(sPath);
+        Handle old = (h != null) ? previous.put(sPath, h) : previous.remove(sPath);
+        if (old != null)
+            retire(old);
+        Iterator<Handle> it = previous.values().iterator();
+        while (previous.size() > MAX_HANDLES / 4 && it.hasNext()) {
+            Handle p = it.next();
+            it.remove();
+            retire(p);
+        }
+    }
+
+    private void retire(Handle h) {
+        handles.remove(h.sPath, h);
+        h.retired = true;
+        if (h.refs == 0)
+            h.close();
+    }
+
+    /* close the least recently used handles over the bound */
+    private void trim() {
+        Iterator<Map.Entry<String, Handle>> it = handles.entrySet().iterator();
+        while (handles.size() > MAX_HANDLES && it.hasNext()) {
+            Handle h = it.next().getValue();
+            it.remove();
+            h.retired = true;
+            if (h.refs == 0)
+                h.close();
+        }
+    }
+}
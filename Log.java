@@ -0,0 +1,48 @@
+/* Log.java:
+ *    leveled logging to stderr. Only warnings and errors are on by
+ *    default, the per-call messages are debug and cost one compare
+ *    when off; build costly messages only behind on(DEBUG). The level
+ *    comes from -Dlog=... or the proxy option log=..., one of off,
+ *    error, warn, info, debug.
+ */
+public class Log {
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+    private static final String[] NAMES = {"off", "error", "warn", "info", "debug"};
+
+    public static volatile int level = parse(System.getProperty("log", "warn"));
+
+    public static int parse(String name) {
+        for (int i = 0; i < NAMES.length; i++)
+            if (NAMES[i].equals(name)) return i;
+        return WARN;
+    }
+
+    public static boolean on(int l) {
+        return l <= level;
+    }
+
+    private static void emit(int l, String msg, Throwable t) {
+        System.err.println("[" + NAMES[l] + "] " + msg);
+        if (t != null) t.printStackTrace();
+    }
+
+    public static void error(String msg) {
+        if (on(ERROR)) emit(ERROR, msg, null);
+    }
+    public static void error(String msg, Throwable t) {
+        if (on(ERROR)) emit(ERROR, msg, t);
+    }
+    public static void warn(String msg) {
+        if (on(WARN)) emit(WARN, msg, null);
+    }
+    public static void info(String msg) {
+        if (on(INFO)) emit(INFO, msg, null);
+    }
+    public static void debug(String msg) {
+        if (on(DEBUG)) emit(DEBUG, msg, null);
+    }
+}
@@ -0,0 +1,40 @@
+/* LruList.java:
+ *    intrusive doubly linked list of master copies through
+ *    MyFile.prev/next, head is the most recently used. A file is
+ *    in at most one list, policies tell theirs apart by MyFile.seg.
+ */
+public class LruList {
+    public MyFile head;
+    public MyFile tail;
+    public int count;
+
+    public void linkFirst(MyFile f) {
+        f.prev = null;
+        f.next = head;
+        if (head != null) head.prev = f;
+        else tail = f;
+        head = f;
+        count++;
+    }
+
+    public void unlink(MyFile f) {
+        if (f.prev != null) f.prev.next = f.next;
+        else head = f.next;
+        if (f.next != null) f.next.prev = f.prev;
+        else tail = f.prev;
+        f.prev = null;
+        f.next = null;
+        count--;
+    }
+
+    public void moveFirst(MyFile f) {
+        if (head == f) return;
+        unlink(f);
+        linkFirst(f);
+    }
+
+    /* least recently used file, pinned ones are never in the list */
+    public MyFile last() {
+        return tail;
+    }
+}
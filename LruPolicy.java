@@ -0,0 +1,34 @@
+/* LruPolicy.java:
+ *    plain lru, evicts the least recently used unpinned file
+ */
+public class LruPolicy implements EvictionPolicy {
+    private final LruList queue = new LruList();
+
+    public void record(String path) {
+    }
+
+    public void add(MyFile f) {
+        queue.linkFirst(f);
+    }
+
+    public void access(MyFile f) {
+        queue.moveFirst(f);
+    }
+
+    public void remove(MyFile f) {
+        queue.unlink(f);
+    }
+
+    public void pin(MyFile f) {
+        queue.unlink(f);
+    }
+
+    /* its last fd just closed, that counts as a use */
+    public void unpin(MyFile f) {
+        queue.linkFirst(f);
+    }
+
+    public MyFile victim() {
+        return queue.last();
+    }
+}
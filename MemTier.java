@@ -0,0 +1,138 @@
+/* MemTier.java:
+ *    RAM tier in front of the on-disk cache: small master copies are
+ *    also held in direct buffers within a byte budget of their own,
+ *    and fds on them read memory instead of the cache file. Masters
+ *    pushed out of the tier are demoted to the disk tier, written to
+ *    their cache file if they never had one. That write happens under
+ *    the victim's path lock; a victim whose lock is busy stays put
+ *    and the next one is tried, so admitting never waits on a lock.
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class MemTier {
+    public long budget;     // bytes the tier may hold
+    public long maxFile;    // largest master admitted
+    public long used;
+
+    // masters in the tier, least recently used first
+    private LinkedHashMap<MyFile, Boolean> lru;
+    private final Locks locks;
+
+    /* the proxy's path locks, see Proxy.lockFor */
+    public interface Locks {
+        public ReentrantLock lockFor(String path);
+    }
+
+    public MemTier(long budget, long maxFile, Locks locks) {
+        this.budget = budget;
+        this.maxFile = maxFile;
+        this.locks = locks;
+        this.used = 0;
+        this.lru = new LinkedHashMap<MyFile, Boolean>(16, 0.75f, true);
+    }
+
+    /* can f's contents go into the tier at all */
+    public boolean fits(long size) {
+        return size > 0 && size <= maxFile && size <= budget;
+    }
+
+    /* hold f's contents, given in data, demoting others as needed;
+     * false if too many of them were busy to make room */
+    public synchronized boolean admit(MyFile f, ByteBuffer data) {
+        if (f.mem != null || !fits(data.remaining())) return false;
+        Iterator<MyFile> it = lru.keySet().iterator();
+        while (used + data.remaining() > budget && it.hasNext()) {
+            MyFile victim = it.next();
+            ReentrantLock lock = locks.lockFor(victim.path);
+            if (!lock.tryLock())
+                continue;
+            try {
+                it.remove();
+                demote(victim);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (used + data.remaining() > budget)
+            return false;
+        f.mem = data.asReadOnlyBuffer();
+        used += data.remaining();
+        lru.put(f, Boolean.TRUE);
+        return true;
+    }
+
+    /* read f's cache file into the tier, for a master that turned hot */
+    public boolean promote(MyFile f) {
+        if (f.mem != null || !fits(f.fileSize)) return false;
+        try {
+            return admit(f, load(f.cachePath, f.fileSize));
+        } catch (IOException e) {
+            Log.error("promoting " + f.cachePath + " failed", e);
+            return false;
+        }
+    }
+
+    public synchronized void touch(MyFile f) {
+        lru.get(f);
+    }
+
+    /* f left the cache, fds still on it keep their own buffer */
+    public synchronized void remove(MyFile f) {
+        if (lru.remove(f) == null) return;
+        used -= f.mem.capacity();
+        f.mem = null;
+    }
+
+    /* move f down to the disk tier, its file is written before the
+     * buffer is dropped so an open never finds neither; the caller
+     * holds f's path lock */
+    private void demote(MyFile f) {
+        ByteBuffer data = f.mem;
+        used -= data.capacity();
+        try {
+            store(f.cachePath, data);
+        } catch (IOException e) {
+            Log.error("demoting " + f.path + " failed", e);
+        }
+        f.mem = null;
+        Log.debug("demoted to disk: " + f.path);
+    }
+
+    /* write data to the cache file at path unless it is there already */
+    public static void store(String path, ByteBuffer data) throws IOException {
+        RandomAccessFile rF = new RandomAccessFile(path, "rw");
+        try {
+            if (rF.length() != data.capacity()) {
+                FileChannel ch = rF.getChannel();
+                ByteBuffer src = data.duplicate();
+                src.clear();
+                while (src.hasRemaining())
+                    ch.write(src, src.position());
+            }
+        } finally {
+            rF.close();
+        }
+    }
+
+    /* the contents of a cache file in a direct buffer */
+    public static ByteBuffer load(String path, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect((int)size);
+        RandomAccessFile rF = new RandomAccessFile(path, "r");
+        try {
+            FileChannel ch = rF.getChannel();
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, buf.position()) < 0) break;
+            }
+        } finally {
+            rF.close();
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,211 @@
+/* MetaCache.java:
+ *    server side cache of file attributes, keyed by the resolved
+ *    server path. An entry is filled with one readAttributes call and
+ *    dropped when the server changes the file itself or when the
+ *    WatchService reports a change in its directory, so hot
+ *    getVersion calls never touch the disk.
+ *
+ *    Every drop bumps a generation, kept per stripe of keys. A miss
+ *    reads the generation before it goes to the disk and only keeps
+ *    what it read if the generation has not moved since; otherwise
+ *    a drop that raced with the read could leave the old attributes
+ *    cached for good.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MetaCache {
+    // entries kept before the cache starts over
+    public static final int MAX_ENTRIES = 100000;
+    private static final int STRIPES = 64;
+
+    /* what getVersion needs to know about one path */
+    public static class Meta {
+        public boolean inRoot;
+        public boolean exist;
+        public boolean isDir;
+        public long size;
+        public long version;
+        public boolean canRead;
+        public boolean canWrite;
+
+        public FileInfo info() {
+            FileInfo fi = new FileInfo();
+            fi.exist = exist;
+            fi.isDir = isDir;
+            fi.size = size;
+            fi.version = version;
+            fi.canRead = canRead;
+            fi.canWrite = canWrite;
+            return fi;
+        }
+    }
+
+    private String root;
+    private ConcurrentHashMap<String, Meta> metas;
+    private WatchService watcher;
+    private ConcurrentHashMap<Path, WatchKey> watched;
+    // drops so far per stripe, guarded by the stripe's lock
+    private final long[] gens = new long[STRIPES];
+    private final Object[] stripes = new Object[STRIPES];
+
+    public MetaCache(String root) {
+        this.root = root;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+        this.metas = new ConcurrentHashMap<String, Meta>();
+        this.watched = new ConcurrentHashMap<Path, WatchKey>();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    watch();
+                }
+            }, "meta-watch");
+            t.setDaemon(true);
+            t.start();
+        } catch (IOException e) {
+            /* no watching, only our own writes invalidate */
+            Log.warn("no watch service for metadata cache");
+            watcher = null;
+        }
+    }
+
+    /* get the attributes of sPath, from memory when we have them.
+     * Entries are kept under the normalized path, the form the server's
+     * writes and the watcher drop. A path with . or .. in it is read
+     * from disk every time: it may be an alias of a cached path, and
+     * folding .. by name is wrong past a symlink */
+    public Meta get(String sPath) {
+        String raw = Paths.get(sPath).toString();
+        String key = key(sPath);
+        if (!key.equals(raw))
+            return load(raw);
+        Meta m = metas.get(key);
+        if (m != null) return m;
+        int s = stripe(key);
+        long gen;
+        synchronized (stripes[s]) {
+            gen = gens[s];
+        }
+        m = load(key);
+        if (metas.size() >= MAX_ENTRIES)
+            metas.clear();
+        synchronized (stripes[s]) {
+            if (gens[s] == gen)
+                metas.put(key, m);
+        }
+        return m;
+    }
+
+    /* forget sPath, called on every change the server makes */
+    public void invalidate(String sPath) {
+        drop(key(sPath));
+    }
+
+    private static String key(String sPath) {
+        return Paths.get(sPath).normalize().toString();
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    private void drop(String key) {
+        int s = stripe(key);
+        synchronized (stripes[s]) {
+            gens[s]++;
+            metas.remove(key);
+        }
+    }
+
+    private void dropAll() {
+        for (int s = 0; s < STRIPES; s++) {
+            synchronized (stripes[s]) {
+                gens[s]++;
+            }
+        }
+        metas.clear();
+    }
+
+    private Meta load(String key) {
+        Meta m = new Meta();
+        Path p = Paths.get(key);
+        try {
+            m.inRoot = new File(key).getCanonicalPath().startsWith(root);
+        } catch (IOException e) {
+            Log.error("resolving " + key + " failed", e);
+            m.inRoot = false;
+        }
+        /* watch the directory before reading, so a change racing with
+         * the read still drops the entry */
+        watch(p.getParent());
+        try {
+            BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+            m.exist = true;
+            m.isDir = a.isDirectory();
+            m.size = a.size();
+            m.version = a.lastModifiedTime().toMillis();
+            m.canRead = Files.isReadable(p);
+            m.canWrite = Files.isWritable(p);
+        } catch (NoSuchFileException e) {
+            m.exist = false;
+        } catch (IOException e) {
+            Log.error("reading " + key + " failed", e);
+            m.exist = false;
+        }
+        return m;
+    }
+
+    private void watch(Path dir) {
+        if (watcher == null || dir == null || watched.containsKey(dir)) return;
+        try {
+            WatchKey k = dir.register(watcher,
+                                      StandardWatchEventKinds.ENTRY_CREATE,
+                                      StandardWatchEventKinds.ENTRY_DELETE,
+                                      StandardWatchEventKinds.ENTRY_MODIFY);
+            watched.put(dir, k);
+        } catch (IOException e) {
+            /* not a directory (yet), nothing to watch */
+        }
+    }
+
+    /* watcher thread: drop entries for whatever changed on disk */
+    private void watch() {
+        while (true) {
+            WatchKey k;
+            try {
+                k = watcher.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) k.watchable();
+            for (WatchEvent<?> ev : k.pollEvents()) {
+                if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    dropAll();
+                    continue;
+                }
+                Path child = dir.resolve((Path) ev.context());
+                drop(child.toString());
+            }
+            /* the directory's own mtime moved too */
+            drop(dir.toString());
+            if (!k.reset())
+                watched.remove(dir);
+        }
+    }
+}
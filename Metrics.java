@@ -0,0 +1,250 @@
+/* Metrics.java:
+ *    named counters, gauges and latency histograms of one process,
+ *    proxy or server. All of them show up as attributes of a single
+ *    MBean (proxy:type=Metrics or server:type=Metrics) and in the text
+ *    of dump, which start can print every so often.
+ *
+ *    A histogram has one bucket per power of two of nanoseconds, so a
+ *    record is an add to a striped counter and percentiles are within
+ *    a factor of two.
+ */
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+public class Metrics implements DynamicMBean {
+    public static class Counter {
+        private final LongAdder n = new LongAdder();
+
+        public void inc() {
+            n.increment();
+        }
+        public void add(long v) {
+            n.add(v);
+        }
+        public long get() {
+            return n.sum();
+        }
+    }
+
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[64 - Long.numberOfLeadingZeros(nanos)].increment();
+            sum.add(nanos);
+            long m;
+            while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+                ;
+        }
+
+        /* time since start, from System.nanoTime */
+        public void since(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long count() {
+            long n = 0;
+            for (LongAdder b : buckets)
+                n += b.sum();
+            return n;
+        }
+
+        public long mean() {
+            long n = count();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /* upper bound of the bucket holding the q quantile */
+        public long percentile(double q) {
+            long[] c = new long[buckets.length];
+            long n = 0;
+            for (int i = 0; i < c.length; i++)
+                n += (c[i] = buckets[i].sum());
+            if (n == 0) return 0;
+            long rank = (long)Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < c.length; i++) {
+                seen += c[i];
+                if (seen >= rank)
+                    return Math.min((1L << i) - 1, max());
+            }
+            return max();
+        }
+    }
+
+    private static final ConcurrentSkipListMap<String, Counter> counters
+        = new ConcurrentSkipListMap<String, Counter>();
+    private static final ConcurrentSkipListMap<String, Histogram> histograms
+        = new ConcurrentSkipListMap<String, Histogram>();
+    private static final ConcurrentSkipListMap<String, LongSupplier> gauges
+        = new ConcurrentSkipListMap<String, LongSupplier>();
+
+    public static Counter counter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            counters.putIfAbsent(name, new Counter());
+            c = counters.get(name);
+        }
+        return c;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            h = histograms.get(name);
+        }
+        return h;
+    }
+
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /* timed: target seen through iface, every call recorded in the
+     * histogram prefix + method name, looked up once per method */
+    @SuppressWarnings("unchecked")
+    public static <T> T timed(Class<T> iface, final T target, final String prefix) {
+        return (T) java.lang.reflect.Proxy.newProxyInstance(iface.getClassLoader(),
+            new Class<?>[] {iface}, new InvocationHandler() {
+                final ConcurrentHashMap<Method, Histogram> byMethod =
+                    new ConcurrentHashMap<Method, Histogram>();
+
+                public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+                    if (m.getDeclaringClass() == Object.class)
+                        return m.invoke(target, args);
+                    Histogram h = byMethod.get(m);
+                    if (h == null) {
+                        h = histogram(prefix + m.getName());
+                        byMethod.putIfAbsent(m, h);
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        return m.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        h.since(start);
+                    }
+                }
+            });
+    }
+
+    /* every value by attribute name, histograms as name.count,
+     * name.mean, name.p50, name.p99 and name.max in nanoseconds */
+    private static Map<String, Long> values() {
+        ConcurrentSkipListMap<String, Long> v = new ConcurrentSkipListMap<String, Long>();
+        for (Map.Entry<String, Counter> e : counters.entrySet())
+            v.put(e.getKey(), e.getValue().get());
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+            v.put(e.getKey(), e.getValue().getAsLong());
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            v.put(e.getKey() + ".count", h.count());
+            v.put(e.getKey() + ".mean", h.mean());
+            v.put(e.getKey() + ".p50", h.percentile(0.5));
+            v.put(e.getKey() + ".p99", h.percentile(0.99));
+            v.put(e.getKey() + ".max", h.max());
+        }
+        return v;
+    }
+
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : values().entrySet())
+            sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    /* start: register the MBean under domain, and if periodMs > 0
+     * print dump to stderr that often */
+    public static void start(String domain, final long periodMs) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new Metrics(), new ObjectName(domain + ":type=Metrics"));
+        } catch (Exception e) {
+            Log.warn("metrics not registered with jmx: " + e);
+        }
+        if (periodMs <= 0) return;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(periodMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.err.print("--- metrics\n" + dump());
+                }
+            }
+        }, "metrics");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /* DynamicMBean, read only */
+    public Object getAttribute(String name) throws AttributeNotFoundException {
+        Long v = values().get(name);
+        if (v == null) throw new AttributeNotFoundException(name);
+        return v;
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Long> v = values();
+        AttributeList list = new AttributeList();
+        for (String n : names)
+            if (v.containsKey(n))
+                list.add(new Attribute(n, v.get(n)));
+        return list;
+    }
+
+    public void setAttribute(Attribute a) {
+        throw new UnsupportedOperationException("metrics are read only");
+    }
+
+    public AttributeList setAttributes(AttributeList list) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String action, Object[] params, String[] sig) {
+        throw new UnsupportedOperationException(action);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+        for (String n : values().keySet())
+            attrs.add(new MBeanAttributeInfo(n, "long", n, true, false, false));
+        return new MBeanInfo(Metrics.class.getName(), "proxy and server metrics",
+                             attrs.toArray(new MBeanAttributeInfo[0]), null,
+                             new MBeanOperationInfo[0], null);
+    }
+}
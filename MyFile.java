@@ -1,5 +1,10 @@
-import java.io.RandomAccessFile;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class MyFile {
     public String path;
@@ -9,42 +14,84 @@ public class MyFile {
     public long fileSize;
     public long version;
     public boolean readOnly;   // Read-Only ?
-    public int readerCount;
-    public RandomAccessFile rF;
+    public Extents dirty;      // bytes changed through a write copy
+
+    /* for an open fd: the master copy it reads through, its own
+     * copy-on-write view and file pointer */
+    public MyFile master;
+    public CowFile cow;
+    public long pos;
+
+    /* for a master copy: read channel and mapping shared by all fds on it */
+    private FileChannel base;
+    private MappedByteBuffer map;
+    public boolean detached;   // evicted while still pinned
+    public volatile ByteBuffer mem;   // contents when in the RAM tier
+    public boolean canRead;
+    public boolean canWrite;
+    public volatile long leaseUntil;  // trusted without a server check until
 
-    public MyFile(FileInfo fi, RandomAccessFile rF, MyFile f) {
+    /* bookkeeping of the cache queue, owned by Cache and its policy */
+    public MyFile prev;
+    public MyFile next;
+    public int seg;            // which list of the policy
+    public int freq;
+    public double prio;
+    public long seq;
+    public boolean queued;
+    public int pins;           // opens using this copy, see Cache.pin
+
+    public MyFile(FileInfo fi, MyFile f) {
         this.path = f.path;
         this.cachePath = f.cachePath;
         this.version = fi.version;
         this.fileSize = fi.size;
         this.readOnly = (fi.canRead && !fi.canWrite);
-        this.readerCount = 0;
         this.origPath = f.origPath;
-        this.rF = rF;
     }
 
     public MyFile(String path, String cachePath, String origPath) {
         this.path = path;
         this.cachePath = cachePath;
-        this.readerCount = 0;
-        this.rF = null;
         this.origPath = origPath;
     }
 
-    public MyFile(MyFile f, String copyPath, String cacheP, boolean readOnly) {
-        this.path = copyPath;
-        this.cachePath = cacheP;
-        this.fileSize = f.fileSize;
-        this.origPath = f.origPath;
-        this.version = f.version;
+    /* an fd opened on master through cow */
+    public MyFile(MyFile master, CowFile cow, boolean readOnly) {
+        this.path = master.path;
+        this.cachePath = master.cachePath;
+        this.fileSize = master.fileSize;
+        this.origPath = master.origPath;
+        this.version = master.version;
         this.readOnly = readOnly;
-        this.readerCount = f.readerCount;
-        /* create explicit copy for randomfile ? */
-        this.rF = null;
+        this.master = master;
+        this.cow = cow;
+        this.pos = 0;
+    }
+
+    /* the shared read channel of a master copy, opened on first use */
+    public synchronized FileChannel channel() throws IOException {
+        if (base == null)
+            base = FileChannel.open(Paths.get(cachePath), StandardOpenOption.READ);
+        return base;
+    }
+
+    /* a read only mapping of a master copy, null if it is too big
+     * to map; the file never changes in place, so it stays valid */
+    public synchronized ByteBuffer map(long limit) throws IOException {
+        if (map == null && fileSize > 0 && fileSize <= limit)
+            map = channel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        return map;
+    }
+
+    public synchronized void closeChannel() {
+        map = null;
+        if (base == null) return;
         try {
-            this.rF = new RandomAccessFile((new File(cacheP)), "rw");
+            base.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("closing " + cachePath + " failed", e);
         }
+        base = null;
     }
 }
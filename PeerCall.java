@@ -0,0 +1,8 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/* calls a proxy takes from other proxies: reads of the master copies
+ * it has cached, by path and exact version */
+public interface PeerCall extends Remote {
+    public Bus peerRead(String path, long version, long offset) throws RemoteException;
+}
@@ -0,0 +1,154 @@
+/* Prefetcher.java:
+ *    learns which file a client tends to open after which, and picks
+ *    the files worth fetching ahead of their open. For every path it
+ *    keeps a few successors seen within a client session with a count
+ *    each; a successor seen at least twice is predicted.
+ *
+ *    Budgets: files over maxFile are never prefetched, and at most
+ *    space bytes of prefetched masters may sit unused in the cache.
+ *    Bandwidth is not metered: prefetchThreads caps how many fetches
+ *    run at once, and that is all that bounds it. Prefetched
+ *    masters are ordinary unpinned masters, so eviction treats them
+ *    like the rest and fds keep theirs pinned.
+ */
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Prefetcher {
+    private static final int MAX_PATHS = 10000;
+    private static final int SUCCESSORS = 4;
+    private static final int CONFIDENCE = 2;
+    private static final int MAX_QUEUED = 16;
+
+    /* successors of a path, replaced by lowest count when full */
+    private static class Successors {
+        final String[] paths = new String[SUCCESSORS];
+        final int[] counts = new int[SUCCESSORS];
+
+        void add(String next) {
+            int min = 0;
+            for (int i = 0; i < SUCCESSORS; i++) {
+                if (next.equals(paths[i])) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) min = i;
+            }
+            paths[min] = next;
+            counts[min] = 1;
+        }
+    }
+
+    private final Cache cache;
+    private final long space;
+    public final long maxFile;
+    private final LinkedHashMap<String, Successors> table
+        = new LinkedHashMap<String, Successors>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Successors> e) {
+                return size() > MAX_PATHS;
+            }
+        };
+    /* fetches asked for and not finished yet, by original path */
+    private final HashSet<String> queued = new HashSet<String>();
+    /* prefetched masters not opened yet, flattened path to
+     * {version, size} */
+    private final HashMap<String, long[]> unused = new HashMap<String, long[]>();
+    private long unusedBytes;
+
+    /* counters for the report */
+    public final AtomicLong issued = new AtomicLong();
+    public final AtomicLong fetched = new AtomicLong();
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong wasted = new AtomicLong();
+
+    public Prefetcher(Cache cache, long space, long maxFile) {
+        this.cache = cache;
+        this.space = space;
+        this.maxFile = maxFile;
+    }
+
+    /* learn: the session opened next after prev (null for its first
+     * open), returns the files predicted to follow next */
+    public synchronized String[] learn(String prev, String next) {
+        if (prev != null && !prev.equals(next)) {
+            Successors s = table.get(prev);
+            if (s == null) {
+                s = new Successors();
+                table.put(prev, s);
+            }
+            s.add(next);
+        }
+        Successors s = table.get(next);
+        if (s == null) return new String[0];
+        int n = 0;
+        String[] out = new String[SUCCESSORS];
+        for (int i = 0; i < SUCCESSORS; i++)
+            if (s.paths[i] != null && s.counts[i] >= CONFIDENCE)
+                out[n++] = s.paths[i];
+        String[] ret = new String[n];
+        System.arraycopy(out, 0, ret, 0, n);
+        return ret;
+    }
+
+    /* claim: true if a fetch of path may be started now */
+    public synchronized boolean claim(String path) {
+        if (queued.size() >= MAX_QUEUED) return false;
+        if (unusedBytes >= space && sweep() >= space) return false;
+        if (!queued.add(path)) return false;
+        issued.incrementAndGet();
+        return true;
+    }
+
+    /* room for size more unused bytes */
+    public synchronized boolean fits(long size) {
+        return size <= maxFile && unusedBytes + size <= space;
+    }
+
+    /* the fetch of path ended, master is what it brought in or null */
+    public synchronized void done(String path, MyFile master) {
+        if (master != null) {
+            fetched.incrementAndGet();
+            long[] old = unused.put(master.path,
+                                    new long[] {master.version, master.fileSize});
+            if (old != null) unusedBytes -= old[1];
+            unusedBytes += master.fileSize;
+        }
+        queued.remove(path);
+    }
+
+    /* an open got master, count it if we brought it in */
+    public synchronized void used(MyFile master) {
+        long[] e = unused.remove(master.path);
+        if (e == null) return;
+        if (e[0] == master.version) hits.incrementAndGet();
+        else wasted.incrementAndGet();
+        unusedBytes -= e[1];
+    }
+
+    /* forget prefetched masters the cache has dropped since,
+     * returns the unused bytes left */
+    private long sweep() {
+        Iterator<Map.Entry<String, long[]>> it = unused.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, long[]> e = it.next();
+            if (cache.findVer(e.getKey()) != e.getValue()[0]) {
+                it.remove();
+                wasted.incrementAndGet();
+                unusedBytes -= e.getValue()[1];
+            }
+        }
+        return unusedBytes;
+    }
+
+    public String report() {
+        long f = fetched.get();
+        long h = hits.get();
+        return "prefetch: issued " + issued.get() + ", fetched " + f
+            + ", used " + h + ", wasted " + wasted.get()
+            + ", hit rate " + (f == 0 ? 0 : h * 100 / f) + "%";
+    }
+}
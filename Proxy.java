@@ -6,29 +6,109 @@
 
 import java.io.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 import java.net.MalformedURLException;
 import java.rmi.NotBoundException;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 
 class Proxy {
 
-    // the generated file descriptor, 65 for differentiataing local
-    private static AtomicInteger fD = new AtomicInteger(65);
+    // names the private block files of write copies, fds are reused
+    private static AtomicLong copyIds = new AtomicLong();
 
     /* From cmd arguments */
     private static String serverIp;
     private static String serverPort;
     private static String cacheRoot;
     private static long cacheSize;
-    private static final ReentrantLock lock = new ReentrantLock();
+    /* optional name=value arguments after the four above */
+    private static final ConcurrentHashMap<String, String> options
+        = new ConcurrentHashMap<String, String>();
+
+    /* chunk requests kept in flight by one download */
+    private static int fetchDepth;
+    /* threads that run the chunk requests */
+    private static ExecutorService fetchPool;
+    /* use the server's data channel when it offers one */
+    private static boolean stream;
+    /* files up to this size come back inline with validate */
+    private static int inline;
+    /* map master copies for reads instead of reading the file */
+    private static boolean mmap;
+    /* on an out of date miss of a file of at least deltaMin bytes,
+     * fetch only a delta against the stale copy, see Delta */
+    private static boolean delta;
+    private static long deltaMin;
+    /* ask for deflated chunks and deflate uploads, see BusCodec */
+    private static boolean compress;
+    /* the server told us it takes deflated chunks */
+    private static volatile boolean serverCompress;
+    /* fetches files ahead of their open, or null when off */
+    private static Prefetcher prefetcher;
+    private static ExecutorService prefetchPool;
+    private static FileHandler prefetchHandler;
+    /* upload through a server session committed by a rename, with
+     * fetchDepth pieces in flight, instead of writing the live file */
+    private static boolean session;
+    /* uploads closed write copies in the background, or null */
+    private static WriteBack writeBack;
+    // largest master copy that is mapped
+    private static final long MAP_LIMIT = 1L << 30;
+
+    /* metrics, see Metrics; rpc latencies are recorded by the
+     * wrapper around server */
+    private static final Metrics.Counter HITS = Metrics.counter("cache.hit");
+    private static final Metrics.Counter LEASE_HITS = Metrics.counter("cache.hit.lease");
+    private static final Metrics.Counter COLD_MISSES = Metrics.counter("cache.miss.cold");
+    private static final Metrics.Counter STALE_MISSES = Metrics.counter("cache.miss.stale");
+    private static final Metrics.Counter DOWNLOADED = Metrics.counter("bytes.downloaded");
+    private static final Metrics.Counter UPLOADED = Metrics.counter("bytes.uploaded");
+    private static final Metrics.Counter FROM_PEERS = Metrics.counter("bytes.peer.in");
+    private static final Metrics.Counter TO_PEERS = Metrics.counter("bytes.peer.out");
+    private static final Metrics.Histogram DOWNLOAD = Metrics.histogram("download");
+    private static final Metrics.Histogram LOCK_WAIT = Metrics.histogram("lock.wait");
+    /* lease mode: our id with the server for callbacks, 0 when off */
+    private static int proxyId;
+    /* bumped by every callback, a lease granted while a callback
+     * came in may already be stale and is not used */
+    private static final AtomicLong leaseEpoch = new AtomicLong();
+    /* peer mode: our id with the server as a holder of cached
+     * masters other proxies may read, 0 when off */
+    private static int peerId;
+
+    /* per-path locks, striped by the flattened path name */
+    private static final int STRIPES = 64;
+    private static final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    static {
+        for (int i = 0; i < STRIPES; i++)
+            locks[i] = new ReentrantLock();
+    }
+
+    /* downloads in progress, keyed by flattened path */
+    private static final ConcurrentHashMap<String, FutureTask<MyFile>> inflight
+        = new ConcurrentHashMap<String, FutureTask<MyFile>>();
 
     /* Server */
     private static RemoteCall server;
@@ -49,44 +129,330 @@ class Proxy {
                 f.mkdirs();
             }
             if (!f.isDirectory()) {
-                System.err.println("WRONG CACHE DIR");
+                Log.error("WRONG CACHE DIR");
             }
             this.cacheRoot = f.getCanonicalPath();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("bad cache dir " + cmdPath, e);
         }
         this.cacheSize = Long.parseLong(args[3]);
-        this.server = connect(this.serverIp, this.serverPort);
-        this.cache = new Cache(cacheSize);
+        for (int i = 4; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) {
+                Log.warn("ignoring option " + args[i]);
+                continue;
+            }
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        if (options.containsKey("log"))
+            Log.level = Log.parse(option("log", "warn"));
+        this.cache = new Cache(cacheSize, Cache.policyFor(option("policy", "lru")));
+        this.fetchDepth = Integer.parseInt(option("fetchDepth", "4"));
+        this.stream = !option("stream", "on").equals("off");
+        this.inline = Integer.parseInt(option("inline", "65536"));
+        this.mmap = !option("readEngine", "mmap").equals("pread");
+        this.compress = !option("compress", "on").equals("off");
+        this.delta = option("delta", "off").equals("on");
+        this.deltaMin = Long.parseLong(option("deltaMin", "1048576"));
+        this.session = !option("upload", "session").equals("inplace");
+        long memBudget = Long.parseLong(option("memTier", "0"));
+        if (memBudget > 0)
+            this.cache.mem = new MemTier(memBudget,
+                                         Long.parseLong(option("memFile", "262144")),
+                                         new MemTier.Locks() {
+                public ReentrantLock lockFor(String path) {
+                    return Proxy.lockFor(path);
+                }
+            });
+        /* come back warm from the masters a previous run left behind */
+        if (!option("index", "on").equals("off")) {
+            CacheIndex index = new CacheIndex(cacheRoot);
+            index.load(this.cache);
+            this.cache.index = index;
+        }
+        this.fetchPool = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "fetch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (option("prefetch", "off").equals("on")) {
+            this.prefetcher = new Prefetcher(this.cache,
+                Long.parseLong(option("prefetchSpace", Long.toString(cacheSize / 10))),
+                Long.parseLong(option("prefetchMax", "4194304")));
+            this.prefetchPool = Executors.newFixedThreadPool(
+                Integer.parseInt(option("prefetchThreads", "2")), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            /* prefetches use a handler of their own, so they never wait
+             * on a client's downloads */
+            this.prefetchHandler = new FileHandler();
+        }
+        if (option("writeBack", "off").equals("on"))
+            this.writeBack = new WriteBack(new FileHandler(),
+                Integer.parseInt(option("writeBackThreads", "2")),
+                Long.parseLong(option("batchBytes", "65536")));
+        this.server = connectAll(this.serverIp, this.serverPort);
+        if (this.server != null)
+            this.server = Metrics.timed(RemoteCall.class, this.server, "rpc.");
+        startMetrics();
+        if (option("lease", "off").equals("on")) {
+            try {
+                ProxyCallback cb = (ProxyCallback)
+                    UnicastRemoteObject.exportObject(new Invalidator(), 0);
+                this.proxyId = server.register(cb);
+            } catch (RemoteException e) {
+                Log.error("lease mode unavailable, check on use only", e);
+            }
+        }
+        if (option("peer", "off").equals("on")) {
+            try {
+                final PeerServer ps = new PeerServer();
+                PeerCall peer = (PeerCall) UnicastRemoteObject.exportObject(ps, 0);
+                this.peerId = server.registerPeer(peer);
+                /* leave the server's holder lists on the way out */
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            server.unregisterPeer(peerId);
+                            UnicastRemoteObject.unexportObject(ps, true);
+                        } catch (RemoteException e) {
+                            Log.warn("could not unregister as a peer: " + e);
+                        }
+                    }
+                }, "peer-unregister"));
+            } catch (RemoteException e) {
+                Log.error("peer mode unavailable, fetching from the server only", e);
+            }
+        }
+    }
+
+    /* startMetrics: gauges for the state kept elsewhere, then the mbean
+     * and, with metricsDump=<ms>, a periodic dump to stderr */
+    private static void startMetrics() {
+        Metrics.gauge("cache.bytes", new LongSupplier() {
+            public long getAsLong() {
+                return cache.size;
+            }
+        });
+        Metrics.gauge("cache.files", new LongSupplier() {
+            public long getAsLong() {
+                return cache.count;
+            }
+        });
+        Metrics.gauge("cache.bytes.pinned", new LongSupplier() {
+            public long getAsLong() {
+                return cache.pinned;
+            }
+        });
+        Metrics.gauge("compress.bytes.raw", new LongSupplier() {
+            public long getAsLong() {
+                return BusCodec.rawBytes.get();
+            }
+        });
+        Metrics.gauge("compress.bytes.wire", new LongSupplier() {
+            public long getAsLong() {
+                return BusCodec.wireBytes.get();
+            }
+        });
+        Metrics.gauge("compress.nanos", new LongSupplier() {
+            public long getAsLong() {
+                return BusCodec.deflateNanos.get() + BusCodec.inflateNanos.get();
+            }
+        });
+        if (prefetcher != null) {
+            Metrics.gauge("prefetch.fetched", new LongSupplier() {
+                public long getAsLong() {
+                    return prefetcher.fetched.get();
+                }
+            });
+            Metrics.gauge("prefetch.used", new LongSupplier() {
+                public long getAsLong() {
+                    return prefetcher.hits.get();
+                }
+            });
+        }
+        if (writeBack != null) {
+            Metrics.gauge("writeback.depth", new LongSupplier() {
+                public long getAsLong() {
+                    return writeBack.depth();
+                }
+            });
+            Metrics.gauge("writeback.flushed", new LongSupplier() {
+                public long getAsLong() {
+                    return writeBack.flushed.get();
+                }
+            });
+        }
+        Metrics.start("proxy", Long.parseLong(option("metricsDump", "0")));
+    }
+
+    /* lockTimed: take a path lock, recording how long it took */
+    private static void lockTimed(ReentrantLock lock) {
+        if (lock.tryLock()) {
+            LOCK_WAIT.record(0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        LOCK_WAIT.since(start);
+    }
+
+    /* stop trusting our master of path without asking the server */
+    private static void breakLease(String path) {
+        leaseEpoch.incrementAndGet();
+        MyFile f = cache.lookUp(path.replace('/', '_'));
+        if (f != null)
+            f.leaseUntil = 0;
+    }
+
+    /* server callback: a file we may hold a lease on has changed */
+    private static class Invalidator implements ProxyCallback {
+        public void invalidate(String path) {
+            breakLease(path);
+            Log.debug("lease broken: " + path);
+        }
+    }
+
+    /* peer call: another proxy reads our master of path, if we have
+     * exactly that version; null tells it to ask someone else */
+    private static class PeerServer implements PeerCall {
+        public Bus peerRead(String path, long version, long offset) {
+            String key = path.replace('/', '_');
+            ReentrantLock lock = lockFor(key);
+            MyFile f;
+            FileChannel ch = null;
+            ByteBuffer mem;
+            lockTimed(lock);
+            try {
+                f = cache.share(key, version);
+                if (f == null)
+                    return null;
+                /* taken while nothing can replace the file; the tier
+                 * may demote f after we let go, our copy stays good */
+                mem = f.mem;
+                try {
+                    if (mem == null)
+                        ch = f.channel();
+                } catch (IOException e) {
+                    cache.unpin(f);
+                    return null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                int len = (int)Math.max(0, Math.min(Server.busSize, f.fileSize - offset));
+                Bus bus = new Bus(len);
+                ByteBuffer buf = ByteBuffer.wrap(bus.buffer, 0, len);
+                if (mem != null) {
+                    ByteBuffer m = mem.duplicate();
+                    m.position((int)offset).limit((int)offset + len);
+                    buf.put(m);
+                } else {
+                    while (buf.hasRemaining()
+                           && ch.read(buf, offset + buf.position()) > 0);
+                }
+                bus.size = buf.position();
+                TO_PEERS.add(bus.size);
+                if (compress)
+                    BusCodec.compress(bus);
+                return bus;
+            } catch (IOException e) {
+                Log.warn("peer read of " + path + " failed: " + e);
+                return null;
+            } finally {
+                lockTimed(lock);
+                try {
+                    cache.unpin(f);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /* option: value of a name=value argument, or def if not given */
+    public static String option(String name, String def) {
+        String v = options.get(name);
+        return (v == null) ? def : v;
+    }
+
+    /* lockFor: the lock guarding a (flattened) path in the cache */
+    private static ReentrantLock lockFor(String path) {
+        return locks[(path.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /* connectAll: ips may list several servers, as host or host:port
+     * separated by commas, whose files are then sharded by path */
+    public static RemoteCall connectAll(String ips, String port) {
+        if (ips.indexOf(',') < 0)
+            return connect(ips, port);
+        ShardRing ring = new ShardRing();
+        int n = 0;
+        for (String entry : ips.split(",")) {
+            String host = entry.trim();
+            String p = port;
+            int colon = host.lastIndexOf(':');
+            if (colon > 0) {
+                p = host.substring(colon + 1);
+                host = host.substring(0, colon);
+            }
+            RemoteCall s = connect(host, p);
+            if (s == null)
+                continue;
+            try {
+                ring.addShard(host + ":" + p, host, s);
+                n++;
+            } catch (RemoteException e) {
+                Log.error("server " + host + ":" + p + " left out", e);
+            }
+        }
+        return (n > 0) ? ring : null;
     }
 
-    /* connet: connect to the server */
+    /* connet: connect to the server, with transport=binary port is
+     * the server's rpcPort, see RpcServer */
     public static RemoteCall connect(String ip, String port) {
+        if (option("transport", "rmi").equals("binary")) {
+            try {
+                return new RpcClient(ip, Integer.parseInt(port),
+                                     Integer.parseInt(option("rpcConnections", "2")),
+                                     Long.parseLong(option("rpcTimeout", "60000")));
+            } catch (IOException e) {
+                Log.error("cannot reach " + ip + ":" + port, e);
+                return null;
+            }
+        }
         String url = "//" + ip + ":" + port + "/Server";
         try {
             return (RemoteCall) Naming.lookup(url);
         } catch(RemoteException e) {
-            System.err.println("Remote exception in building connection");
+            Log.error("Remote exception in building connection");
         } catch (MalformedURLException e) {
-            System.err.println("url malformed");
+            Log.error("url malformed");
         } catch (NotBoundException e) {
-            System.err.println("connection not bound");
+            Log.error("connection not bound");
         }
-        System.err.println("Server Failed\n");
+        Log.error("Server Failed");
         return null;
     }
 
 
     /* File Handler */
-	private static class FileHandler implements FileHandling {
-        /* Current opening files on this proxy */
-        private ConcurrentHashMap<Integer, MyFile> fdTable;
-        /* Current opening directories on this proxy */
-        private CopyOnWriteArrayList<Integer> dirArray;
+	private static class FileHandler implements FileHandling, WriteBack.Flusher {
+        /* this client's open files and directories */
+        private FdTable fds;
+        /* the file this client opened last, for the prefetcher */
+        private String lastOpen;
 
         public FileHandler() {
-            fdTable = new ConcurrentHashMap<Integer, MyFile>();
-            dirArray = new CopyOnWriteArrayList<Integer>();
+            fds = new FdTable();
         }
 
         /* getCachedPath: given a file path, find the file in cachedir */
@@ -101,45 +467,143 @@ class Proxy {
 
 
         /* downloadFile: given FileInfo fi, the metainfo from server,
-         *              download the file from the server */
-        public synchronized MyFile downloadFile(FileInfo fi, MyFile orig) {
-            long offset = 0;
-            long readByte = 0;
+         *              download the file from the server into cacheStore.
+         *              Up to fetchDepth chunks are requested at once, each
+         *              written at its own offset as it arrives. Not
+         *              synchronized: the path lock and the inflight table
+         *              already keep one download per path, and prefetches
+         *              share one handler. */
+        public MyFile downloadFile(FileInfo fi, MyFile orig, String cacheStore) {
             /* store the downloaded file in the cache list */
             RandomAccessFile f = null;
-            String cacheStore = orig.cachePath;
             try {
                 f = new RandomAccessFile(cacheStore, "rw");
-                long total = 0;
-                while (offset < fi.size) {
-                    // construct a bus for fie transfering
-                    Bus bus = server.sendToProxy(fi, offset);
-                    if (bus.size == 0) break;
-                    offset += bus.size;
-                    f.write(bus.buffer, 0, bus.size);
-                    f.seek(offset);
+                FileChannel ch = f.getChannel();
+                /* whatever validate sent along is already here */
+                long start = 0;
+                if (fi.data != null) {
+                    ByteBuffer buf = ByteBuffer.wrap(fi.data.buffer, 0, fi.data.size);
+                    while (buf.hasRemaining())
+                        ch.write(buf, buf.position());
+                    start = fi.data.size;
+                    /* do not ship it back with every chunk request */
+                    fi.data = null;
+                }
+                if (start >= fi.size) {
+                    Log.debug("inline download");
+                } else if (peerId > 0 && fromPeers(fi, ch, start)) {
+                    Log.debug("peer download");
+                } else if (stream && fi.dataPort > 0) {
+                    try {
+                        streamFile(fi, ch, start);
+                    } catch (Exception e) {
+                        /* refused: that version's handle is gone on the
+                         * server, the rpc path may still have it */
+                        Log.debug("stream failed for " + fi.path + ", by chunks: " + e);
+                        chunks(fi, ch, start, null);
+                    }
+                } else {
+                    chunks(fi, ch, start, null);
                 }
                 f.close();
             } catch (Exception e) {
-                System.err.println("downloading fail");
-                e.printStackTrace();
+                /* never install a file that is not all of fi.version */
+                Log.error("downloading fail", e);
+                try {
+                    if (f != null)
+                        f.close();
+                } catch (IOException x) {
+                    Log.error("closing " + cacheStore, x);
+                }
+                new File(cacheStore).delete();
+                return null;
             }
             MyFile mf = null;
             try {
-                mf = new MyFile(fi, f, orig);
+                mf = new MyFile(fi, orig);
             } catch (Exception e) {
-                System.err.println("downloading fail for setting myF");
+                Log.error("downloading fail for setting myF");
             }
-            System.err.println("we download: " + fi.path);
+            if (Log.on(Log.DEBUG))
+                Log.debug("we download: " + fi.path);
             return mf;
         }
 
-        /* get the path for copies */
-        public String getReadCopy(String path, long ver) {
-            return path + "_read_" + Long.toString(ver);
+        /* chunks: fetch the file from start on chunk by chunk, from
+         * peer or, if that is null, the server, with up to fetchDepth
+         * chunks requested at once */
+        private void chunks(FileInfo fi, FileChannel ch, long start, PeerCall peer)
+            throws Exception {
+            if (fetchDepth <= 1 || fi.size - start <= Server.busSize) {
+                for (long offset = start; offset < fi.size; offset += Server.busSize)
+                    new Chunk(fi, offset, ch, peer).call();
+                return;
+            }
+            ArrayDeque<Future<Long>> window = new ArrayDeque<Future<Long>>();
+            long next = start;
+            try {
+                while (next < fi.size || !window.isEmpty()) {
+                    while (next < fi.size && window.size() < fetchDepth) {
+                        window.add(fetchPool.submit(new Chunk(fi, next, ch, peer)));
+                        next += Server.busSize;
+                    }
+                    window.poll().get();
+                }
+            } catch (ExecutionException e) {
+                for (Future<Long> c : window)
+                    c.cancel(false);
+                throw e;
+            }
+        }
+
+        /* fromPeers: fetch the file from start on from a proxy that
+         * caches this version, false if none of those the server knows
+         * of could give all of it; what they gave is written over */
+        private boolean fromPeers(FileInfo fi, FileChannel ch, long start) {
+            PeerCall[] peers;
+            try {
+                peers = server.peersFor(fi.path, fi.version, peerId);
+            } catch (RemoteException e) {
+                return false;
+            }
+            if (peers == null)
+                return false;
+            for (PeerCall p : peers) {
+                try {
+                    chunks(fi, ch, start, p);
+                    FROM_PEERS.add(fi.size - start);
+                    return true;
+                } catch (Exception e) {
+                    Log.debug("peer failed for " + fi.path + ": " + e);
+                    try {
+                        server.peerFailed(fi.path, p);
+                    } catch (RemoteException x) {
+                        Log.debug("could not report the peer: " + x);
+                    }
+                }
+            }
+            return false;
+        }
+
+        /* advertise: tell the server we now cache fi's version, in the
+         * background, so that peers may read it from us */
+        private void advertise(final FileInfo fi) {
+            if (peerId <= 0) return;
+            fetchPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        server.holding(fi.path, fi.version, peerId);
+                    } catch (RemoteException e) {
+                        Log.warn("could not advertise " + fi.path);
+                    }
+                }
+            });
         }
-        public String getWriteCopy(String path, int fd) {
-            return path + "_write_" + Integer.toString(fd);
+
+        /* get the path for an fd's private copy-on-write blocks, n
+         * numbers the copy */
+        public String getWriteCopy(String path, long n) {
+            return path + "_write_" + Long.toString(n);
         }
 
         /* transDir: flatten all the subdirs by changing / to _ */
@@ -148,311 +612,696 @@ class Proxy {
         }
 
 
-        /* create a copy for read */
-        public String createReadCopy(String path, long ver) {
-            String readName = getReadCopy(path, ver);
-            String readCache = getCachedPath(readName);
-            try {
-                Files.copy(Paths.get(getCachedPath(path)), Paths.get(readCache));
-            } catch (Exception e) {
-                System.err.println("Crashing in creating copy");
-                e.printStackTrace();
+        /* fetch: make sure the master copy of path is cached at the
+         * version the server reported and return it pinned, or null if
+         * there is no room for it. Opens of the same path that miss at
+         * the same time share a single download. */
+        public MyFile fetch(FileInfo fInfo, String path, String origPath) {
+            ReentrantLock lock = lockFor(path);
+            while (true) {
+                FutureTask<MyFile> task = null;
+                boolean owner = false;
+                lockTimed(lock);
+                try {
+                    MyFile myF = cache.acquire(path, fInfo.version);
+                    if (myF != null) {
+                        Log.debug("cachehit");
+                        HITS.inc();
+                        try {
+                            /* a second use makes a small master hot */
+                            if (cache.mem != null)
+                                cache.mem.promote(myF);
+                            /* open the shared channel while nothing
+                             * can replace the file under us */
+                            if (myF.mem == null)
+                                myF.channel();
+                        } catch (IOException e) {
+                            Log.error("caching " + path + " failed", e);
+                            cache.unpin(myF);
+                            return null;
+                        }
+                        return myF;
+                    }
+                    task = inflight.get(path);
+                    if (task == null) {
+                        MyFile origF = cache.lookUp(path);
+                        MyFile base = null;
+                        if (origF == null) {
+                            Log.debug("cold miss");
+                            COLD_MISSES.inc();
+                            origF = new MyFile(path, getCachedPath(path), origPath);
+                        } else if (delta && origF.fileSize >= deltaMin
+                                   && fInfo.size >= deltaMin) {
+                            Log.debug("outofdate miss, trying delta");
+                            STALE_MISSES.inc();
+                            /* the old version stays, pinned, as the base
+                             * of the delta until the new one replaces it */
+                            cache.pin(origF);
+                            if (cache.reserve(fInfo.size)) {
+                                base = origF;
+                            } else {
+                                cache.unpin(origF);
+                                cache.evict(origF);
+                            }
+                        } else {
+                            Log.debug("outofdate miss");
+                            STALE_MISSES.inc();
+                            /* firstly we evict the old version */
+                            cache.evict(origF);
+                        }
+                        if (base == null && !cache.reserve(fInfo.size))
+                            return null;
+                        task = new FutureTask<MyFile>(new Download(fInfo, origF, base));
+                        inflight.put(path, task);
+                        owner = true;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                /* the first opener downloads, everyone else waits on it
+                 * and then retries the lookup */
+                if (owner) task.run();
+                try {
+                    if (task.get() == null && owner)
+                        return null;
+                } catch (Exception e) {
+                    Log.error("download of " + path + " failed", e);
+                    return null;
+                }
             }
-            System.err.println("Create Read copy in " + readName);
-            return readName;
         }
 
-        /* create a copy for write */
-        public String createWriteCopy(String path, int fd) {
-            String writeName = getWriteCopy(path, fd);
-            String writeCache = getCachedPath(writeName);
-            try {
-                Files.copy(Paths.get(getCachedPath(path)), Paths.get(writeCache));
-            } catch (Exception e) {
-                System.err.println("Crashign in creating write copy");
-                e.printStackTrace();
+        /* the host serving fi's data channel */
+        private String dataHost(FileInfo fi) {
+            return (fi.dataHost != null) ? fi.dataHost : serverIp;
+        }
+
+        /* streamFile: pull the file from start on over the server's data
+         * channel, split into up to fetchDepth ranges on their own
+         * connections */
+        private void streamFile(FileInfo fi, FileChannel ch, long start) throws Exception {
+            long left = fi.size - start;
+            long chunks = (left + Server.busSize - 1) / Server.busSize;
+            int n = (int)Math.max(1, Math.min(fetchDepth, chunks));
+            long span = (left + n - 1) / n;
+            if (n == 1) {
+                DataChannel.fetch(dataHost(fi), fi.dataPort, fi.path, fi.version,
+                                  start, left, ch);
+                return;
+            }
+            /* transferFrom refuses to start past the end of the file,
+             * so give the file its full length before the ranges land */
+            if (ch.size() < fi.size)
+                ch.write(ByteBuffer.wrap(new byte[1]), fi.size - 1);
+            ArrayList<Future<Long>> ranges = new ArrayList<Future<Long>>();
+            for (long off = start; off < fi.size; off += span) {
+                final long from = off;
+                final long len = Math.min(span, fi.size - off);
+                final FileInfo info = fi;
+                final FileChannel dst = ch;
+                ranges.add(fetchPool.submit(new Callable<Long>() {
+                    public Long call() throws IOException {
+                        return DataChannel.fetch(dataHost(info), info.dataPort,
+                                                 info.path, info.version, from, len, dst);
+                    }
+                }));
+            }
+            for (Future<Long> r : ranges)
+                r.get();
+        }
+
+        /* one chunk of a download: fetch [offset, offset + busSize)
+         * and write it at offset, returns the bytes written */
+        private class Chunk implements Callable<Long> {
+            private final FileInfo fi;
+            private final long offset;
+            private final FileChannel ch;
+            private final PeerCall peer;   // read from, or null for the server
+
+            Chunk(FileInfo fi, long offset, FileChannel ch, PeerCall peer) {
+                this.fi = fi;
+                this.offset = offset;
+                this.ch = ch;
+                this.peer = peer;
+            }
+
+            public Long call() throws IOException {
+                long end = Math.min(offset + Server.busSize, fi.size);
+                long pos = offset;
+                while (pos < end) {
+                    Bus bus = (peer != null) ? peer.peerRead(fi.path, fi.version, pos)
+                                             : server.sendToProxy(fi, pos);
+                    if (bus == null)
+                        throw new IOException((peer != null) ? "peer no longer has it"
+                                              : "version gone on the server");
+                    BusCodec.expand(bus);
+                    if (bus.size == 0) break;
+                    ByteBuffer buf = ByteBuffer.wrap(bus.buffer, 0, bus.size);
+                    while (buf.hasRemaining())
+                        ch.write(buf, pos + buf.position());
+                    pos += bus.size;
+                }
+                return pos - offset;
+            }
+        }
+
+        /* one download shared by all opens waiting on the path */
+        private class Download implements Callable<MyFile> {
+            private final FileInfo fInfo;
+            private final MyFile origF;
+            private final MyFile base;    // pinned stale version, or null
+
+            Download(FileInfo fInfo, MyFile origF, MyFile base) {
+                this.fInfo = fInfo;
+                this.origF = origF;
+                this.base = base;
+            }
+
+            /* rebuild the new version in tmp out of the stale one and a
+             * delta from the server, false if that did not work out */
+            private boolean deltaFrom(String tmp) {
+                try {
+                    ByteBuffer old = (base.mem != null)
+                        ? base.mem.duplicate() : base.map(MAP_LIMIT);
+                    if (old == null)
+                        return false;
+                    Delta.Script s = server.deltaToProxy(fInfo, Delta.signature(old));
+                    if (s == null)
+                        return false;
+                    FileChannel ch = FileChannel.open(Paths.get(tmp),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                    try {
+                        Delta.apply(s, old, ch);
+                    } finally {
+                        ch.close();
+                    }
+                    DOWNLOADED.add(s.literal);
+                    if (Log.on(Log.DEBUG))
+                        Log.debug("delta download: " + s.literal + " of "
+                                  + s.length + " bytes sent");
+                    return true;
+                } catch (IOException e) {
+                    Log.error("delta download of " + origF.path + " failed", e);
+                    return false;
+                }
+            }
+
+            /* the file is downloaded aside and moved into place under
+             * the path lock, so closes that install a copy as the master
+             * meanwhile never see a half written file */
+            public MyFile call() {
+                long start = System.nanoTime();
+                MyFile myF = install();
+                if (myF != null)
+                    DOWNLOAD.since(start);
+                return myF;
+            }
+
+            private MyFile install() {
+                MyFile myF = null;
+                String tmp = origF.cachePath + "_dl_" + Long.toString(fInfo.version);
+                ReentrantLock lock = lockFor(origF.path);
+                /* a small file that came whole with validate goes
+                 * straight to the RAM tier, the disk never sees it */
+                if (base == null && cache.mem != null && fInfo.data != null
+                    && fInfo.data.size == fInfo.size && cache.mem.fits(fInfo.size)) {
+                    ByteBuffer data = ByteBuffer.allocateDirect(fInfo.data.size);
+                    data.put(fInfo.data.buffer, 0, fInfo.data.size);
+                    data.flip();
+                    fInfo.data = null;
+                    DOWNLOADED.add(fInfo.size);
+                    myF = new MyFile(fInfo, origF);
+                    lockTimed(lock);
+                    try {
+                        MyFile old = cache.lookUp(origF.path);
+                        if (old != null)
+                            cache.evict(old);
+                        /* no stale file may stand in for it on demotion */
+                        new File(origF.cachePath).delete();
+                        cache.push(myF);
+                        cache.add(myF);
+                        /* no room in the tier, the disk has it after all */
+                        if (!cache.mem.admit(myF, data))
+                            MemTier.store(origF.cachePath, data);
+                    } catch (IOException e) {
+                        Log.error("caching " + origF.path + " failed", e);
+                        cache.evict(myF);
+                        return null;
+                    } finally {
+                        cache.release(fInfo.size);
+                        inflight.remove(origF.path);
+                        lock.unlock();
+                    }
+                    advertise(fInfo);
+                    return myF;
+                }
+                try {
+                    if (base != null && deltaFrom(tmp)) {
+                        fInfo.data = null;
+                        myF = new MyFile(fInfo, origF);
+                    } else {
+                        myF = downloadFile(fInfo, origF, tmp);
+                        if (myF != null)
+                            DOWNLOADED.add(fInfo.size);
+                    }
+                } finally {
+                    lockTimed(lock);
+                    try {
+                        if (myF != null) {
+                            MyFile old = cache.lookUp(origF.path);
+                            if (old != null)
+                                cache.evict(old);
+                            Files.move(Paths.get(tmp), Paths.get(origF.cachePath),
+                                    StandardCopyOption.REPLACE_EXISTING);
+                            cache.push(myF);
+                            cache.add(myF);
+                        }
+                    } catch (IOException e) {
+                        Log.error("installing " + origF.path + " failed", e);
+                        myF = null;
+                    } finally {
+                        if (base != null)
+                            cache.unpin(base);
+                        cache.release(fInfo.size);
+                        inflight.remove(origF.path);
+                        lock.unlock();
+                    }
+                }
+                if (myF != null)
+                    advertise(fInfo);
+                return myF;
             }
-            return writeName;
         }
 
+        /* negotiate: chunks of this file come deflated only if both
+         * sides want it, and uploads are deflated once the server
+         * has said it takes them */
+        private FileInfo negotiate(FileInfo fInfo) {
+            if (fInfo.compress)
+                serverCompress = compress;
+            fInfo.compress = fInfo.compress && compress;
+            return fInfo;
+        }
+
+        /* prefetchAfter: this client opened origPath and got master,
+         * start fetching the files that usually come next */
+        private void prefetchAfter(String origPath, MyFile master) {
+            if (prefetcher == null) return;
+            prefetcher.used(master);
+            String prev = lastOpen;
+            lastOpen = origPath;
+            for (final String next : prefetcher.learn(prev, origPath)) {
+                if (!prefetcher.claim(next))
+                    continue;
+                prefetchPool.execute(new Runnable() {
+                    public void run() {
+                        prefetchHandler.prefetch(next);
+                    }
+                });
+            }
+        }
+
+        /* prefetch: bring origPath into the cache unpinned, if it fits
+         * the prefetch budget */
+        private void prefetch(String origPath) {
+            MyFile myF = null;
+            String path = transDir(origPath);
+            try {
+                FileInfo fInfo = negotiate(server.getVersion(origPath, OpenOption.READ));
+                if (fInfo.errno == 0 && !fInfo.isDir && prefetcher.fits(fInfo.size)
+                    && cache.findVer(path) != fInfo.version) {
+                    myF = fetch(fInfo, path, origPath);
+                    if (myF != null) {
+                        ReentrantLock lock = lockFor(path);
+                        lockTimed(lock);
+                        try {
+                            cache.unpin(myF);
+                        } finally {
+                            lock.unlock();
+                        }
+                        Log.debug("prefetched " + origPath);
+                    }
+                }
+            } catch (RemoteException e) {
+                Log.error("prefetch after " + origPath + " failed", e);
+            } finally {
+                prefetcher.done(origPath, myF);
+            }
+        }
 
         /* open: open a file, first check the version by calling the server,
          * if miss, then download the entire file and put it into the chache,
          * otherwise just operate on the cached file. */
 		public int open( String path, OpenOption o ) {
-            // lock for entering critical region
-            lock.lock();
+            /* see the last close of path, even if it is still queued */
+            if (writeBack != null)
+                writeBack.await(path);
+            cache.record(transDir(path));
+            /* a leased master is used without asking the server */
+            if (proxyId > 0) {
+                MyFile leased = cache.acquireLeased(transDir(path), System.currentTimeMillis());
+                if (leased != null) {
+                    Log.debug("lease hit");
+                    LEASE_HITS.inc();
+                    int err = checkLeased(leased, o);
+                    if (err != 0) {
+                        cache.unpin(leased);
+                        return err;
+                    }
+                    prefetchAfter(path, leased);
+                    return openOn(leased, transDir(path), o);
+                }
+            }
+
             FileInfo fInfo;   // server file info
+            long asked = System.currentTimeMillis();
+            long epoch = leaseEpoch.get();
             try {
-                fInfo = server.getVersion(path, o);
+                /* one round trip: the version check, and on a miss
+                 * the file itself if it is small */
+                if (inline > 0 || proxyId > 0)
+                    fInfo = server.validate(path, o, cache.findVer(transDir(path)),
+                                            inline, proxyId);
+                else
+                    fInfo = server.getVersion(path, o);
+                negotiate(fInfo);
             } catch (RemoteException e) {
-                e.printStackTrace();
-                lock.unlock();
+                Log.error("checking " + path + " failed", e);
                 return Errors.EBUSY;
             }
 
             /* check for errno */
             if (fInfo.errno != 0) {
-                System.err.println("Error in opening");
-                lock.unlock();
+                Log.debug("Error in opening");
                 return fInfo.errno;
             }
 
+            /* directories are never cached */
+            if (fInfo.isDir) {
+                return fds.openDir();
+            }
+
             /* check if cache and server has same version
              * if not, download from server */
             String origPath = path;
             path = transDir(path);
-            MyFile origF = cache.lookUp(path);
-            MyFile myF = null;
-            long cacheVer = cache.findVer(path);
-            /* cold miss */
-            System.err.println("");
-            if (cacheVer == -1) {
-                System.err.println("cold miss");
-                if (!cache.hasSpace(fInfo.size)) {
-                    if (!cache.makeRoom(fInfo.size)) {
-                        lock.unlock();
-                        return Errors.ENOMEM;
-                    }
-                }
-                assert(origF == null);
-                origF = new MyFile(path, getCachedPath(path), origPath);
-                myF = downloadFile(fInfo, origF);
-                cache.push(myF);
-                cache.add(myF);
-            }
-            else if (fInfo.version != cacheVer) {
-                System.err.println("outofdate miss");
-                /* firstly we evict the old version */
-                cache.evict(cache.lookUp(path));
-                if (!cache.hasSpace(fInfo.size)) {
-                    if (!cache.makeRoom(fInfo.size)) {
-                        lock.unlock();
-                        return Errors.ENOMEM;
-                    }
-                }
-                myF = downloadFile(fInfo, origF);
-                /* update to cache */
-                cache.push(myF);
-                cache.add(myF);
-            }
-            /* hit */
-            else {
-                System.err.println("cachehit");
-                myF = origF;
-                cache.update(myF);
-            }
-
-            /* the actual open operation */
-            if (o == OpenOption.READ) {
-                    int retFd = fD.getAndIncrement();
-                    /* check for directory */
-                    if (fInfo.isDir) {
-                        dirArray.add(retFd);
-                        lock.unlock();
-                        return retFd;
-                    }
-                    /* check if there exists any read copy */
-                    if (myF.readerCount == 0) {
-                        myF.readerCount += 1;
-                        /* we are using more cache space,
-                         * check for availability */
-                        if (!cache.hasSpace(fInfo.size)) {
-                            if (!cache.makeRoom(fInfo.size)) {
-                                lock.unlock();
-                                return Errors.ENOMEM;
-                            }
-                        }
-                        // create local copy for reading
-                        String copyPath = createReadCopy(path, myF.version);
-                        String copyCache = getCachedPath(copyPath);
-                        MyFile readCopy = new MyFile(myF, copyPath, copyCache,true);
-                        readCopy.readOnly = true;
-
-                        fdTable.put(retFd, readCopy);
-                        cache.push(readCopy);
-                        lock.unlock();
-                        return retFd;
-                    } else {
-                        // if there already exists a read copy
-                        myF.readerCount += 1;
-                        String copyPath = getReadCopy(path, myF.version);
-                        MyFile copy = cache.lookUp(copyPath);
-                        System.err.println("opening copy: " + copyPath);
-                        copy.readerCount += 1;
-                        fdTable.put(retFd, copy);
-                        lock.unlock();
-                        return retFd;
-                    }
-            } else {
-                if (!cache.hasSpace(fInfo.size)) {
-                    if (!cache.makeRoom(fInfo.size)) {
-                        lock.unlock();
-                        return Errors.ENOMEM;
-                    }
-                }
-                int retFd = fD.getAndIncrement();
-                String copyPath = createWriteCopy(path, retFd);
-                String copyCache = getCachedPath(copyPath);
-                MyFile writeCopy = new MyFile(myF, copyPath, copyCache, false);
-                fdTable.put(retFd, writeCopy);
-                cache.push(writeCopy);
-
-                System.err.println("write on: " + copyCache);
-                lock.unlock();
-                return retFd;
-            }
+            MyFile myF = fetch(fInfo, path, origPath);
+            if (myF == null)
+                return Errors.ENOMEM;
+            myF.canRead = fInfo.canRead;
+            myF.canWrite = fInfo.canWrite;
+            if (fInfo.lease > 0 && leaseEpoch.get() == epoch)
+                myF.leaseUntil = asked + fInfo.lease;
+            prefetchAfter(origPath, myF);
+            return openOn(myF, path, o);
 		}
 
-        /* uploading a modified file to the server */
-        public synchronized void upload(MyFile f, int fd) {
-            RandomAccessFile rF = f.rF;
-            long offset = 0;
-            long totalBytes = 0;
+        /* the checks getVersion makes, answered from a leased master */
+        private int checkLeased(MyFile f, OpenOption o) {
+            if (o == OpenOption.CREATE_NEW)
+                return Errors.EEXIST;
+            if (!f.canRead)
+                return Errors.EPERM;
+            if (!f.canWrite && (o == OpenOption.WRITE || o == OpenOption.CREATE))
+                return Errors.EPERM;
+            return 0;
+        }
+
+        /* openOn: give out an fd on the pinned master myF */
+        private int openOn(MyFile myF, String path, OpenOption o) {
+            /* the actual open operation: the fd reads through the master
+             * and keeps it pinned until close, a writer only gets an
+             * empty private block file */
+            CowFile cow;
+            String priv = getCachedPath(getWriteCopy(path, copyIds.getAndIncrement()));
             try {
-                totalBytes = rF.length();
+                ByteBuffer mem = myF.mem;
+                if (mem != null)
+                    cow = new CowFile(null, mem, myF.fileSize, priv);
+                else
+                    cow = new CowFile(myF.channel(), mmap ? myF.map(MAP_LIMIT) : null,
+                                      myF.fileSize, priv);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("opening " + path + " failed", e);
+                cache.unpin(myF);
+                return Errors.EBUSY;
+            }
+            MyFile handle = new MyFile(myF, cow, o == OpenOption.READ);
+            if (!handle.readOnly) {
+                handle.dirty = new Extents();
+                if (Log.on(Log.DEBUG))
+                    Log.debug("write on: " + handle.origPath);
             }
+            return fds.open(handle);
+		}
 
-            while (offset < totalBytes) {
-                Bus bus = null;
-                try {
-                    rF.seek(offset);
-                    int writeCount = (int)totalBytes - (int)offset;
-                    if (writeCount > Server.busSize) writeCount = Server.busSize;
-                    bus = new Bus(writeCount);
-                    bus.size = rF.read(bus.buffer, 0, writeCount);
-                    if (bus.size == -1) {
-                        // EOF
-                        bus.size = 0;
-                        break;
-                    }
-                    server.updateFromProxy((int)offset, bus, f.origPath);
-                    offset += bus.size;
-                } catch (Exception e) {
-                    System.err.println("uploading error ");
-                    e.printStackTrace();
+        /* uploading a modified file to the server: if the server still
+         * has the version this copy was made from, only the ranges
+         * written since open are sent, else the whole file; false if
+         * the server did not take it */
+        public boolean upload(MyFile f) {
+            CowFile cow = f.cow;
+            try {
+                long totalBytes = cow.length();
+                if (f.dirty.isEmpty() && totalBytes == f.fileSize) {
+                    if (Log.on(Log.DEBUG))
+                        Log.debug("nothing to upload for " + f.origPath);
+                    return true;
+                }
+                if (session) {
+                    uploadSession(f, totalBytes);
+                } else if (server.resizeFromProxy(f.origPath, f.version, totalBytes)) {
+                    for (long[] r : f.dirty.toArray())
+                        sendRange(cow, f.origPath, r[0], Math.min(r[1], totalBytes));
+                } else {
+                    if (!server.resizeFromProxy(f.origPath, -1, totalBytes))
+                        throw new IOException("server refused " + f.origPath);
+                    sendRange(cow, f.origPath, 0, totalBytes);
                 }
+                /* the server's callback for our own change may come in
+                 * after our next open, on another connection */
+                breakLease(f.origPath);
+                return true;
+            } catch (Exception e) {
+                Log.error("uploading " + f.origPath + " failed", e);
+                return false;
             }
+        }
+
+        /* uploadSession: stage the changed ranges on the server, or the
+         * whole file if it is no longer at our base version, then have
+         * it renamed into place in one step */
+        private void uploadSession(MyFile f, long totalBytes) throws Exception {
+            long[][] ranges = f.dirty.toArray();
+            long id = server.beginUpload(f.origPath, f.version, totalBytes);
+            if (id == 0) {
+                ranges = new long[][] {{0, totalBytes}};
+                id = server.beginUpload(f.origPath, -1, totalBytes);
+            }
+            if (id < 0)
+                throw new IOException("server refused the upload of " + f.origPath);
+            ArrayDeque<Future<Long>> window = new ArrayDeque<Future<Long>>();
             try {
-                rF.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                for (long[] r : ranges) {
+                    long end = Math.min(r[1], totalBytes);
+                    for (long off = r[0]; off < end; off += Server.busSize) {
+                        if (window.size() >= Math.max(1, fetchDepth))
+                            window.poll().get();
+                        window.add(fetchPool.submit(new Piece(f.cow, id, off,
+                            (int)Math.min(end - off, Server.busSize))));
+                    }
+                }
+                while (!window.isEmpty())
+                    window.poll().get();
+            } catch (Exception e) {
+                for (Future<Long> p : window)
+                    p.cancel(false);
+                server.abortUpload(id);
+                throw e;
+            }
+            if (!server.commitUpload(id))
+                throw new IOException("upload of " + f.origPath + " not committed");
+        }
+
+        /* one piece of an upload session, read from the copy at offset */
+        private class Piece implements Callable<Long> {
+            private final CowFile cow;
+            private final long id;
+            private final long offset;
+            private final int len;
+
+            Piece(CowFile cow, long id, long offset, int len) {
+                this.cow = cow;
+                this.id = id;
+                this.offset = offset;
+                this.len = len;
+            }
+
+            public Long call() throws IOException {
+                Bus bus = new Bus(len);
+                bus.size = cow.read(offset, bus.buffer, 0, len);
+                if (bus.size <= 0)
+                    return 0L;
+                int sent = bus.size;
+                UPLOADED.add(sent);
+                if (serverCompress)
+                    BusCodec.compress(bus);
+                server.uploadChunk(id, offset, bus);
+                return (long)sent;
             }
         }
 
-        // return back the original file name for the master copy
-        public String getReadOrig(MyFile f) {
-            String p = f.path;
-            String suffix = "_read_" + Long.toString(f.version);
-            String origName = p.substring(0, p.length() - suffix.length());
-            return origName;
+        /* send [offset, end) of the copy to the server in bus sized pieces */
+        private void sendRange(CowFile cow, String path, long offset, long end)
+            throws IOException {
+            while (offset < end) {
+                int writeCount = (int)Math.min(end - offset, Server.busSize);
+                Bus bus = new Bus(writeCount);
+                bus.size = cow.read(offset, bus.buffer, 0, writeCount);
+                if (bus.size == -1) {
+                    // EOF
+                    bus.size = 0;
+                    break;
+                }
+                int sent = bus.size;
+                UPLOADED.add(sent);
+                if (serverCompress)
+                    BusCodec.compress(bus);
+                server.updateFromProxy(offset, bus, path);
+                offset += sent;
+            }
         }
 
-        public String getWriteOrig(String path, int fd) {
-            String suffix = "_write_" + Integer.toString(fd);
-            String uploadPath = path.substring(0, path.length() - suffix.length());
-            return uploadPath;
+        /* drop an fd's view: its private blocks and its pin on the master */
+        private void release(MyFile f) {
+            try {
+                cache.discharge(f.cow.privateBytes());
+                f.cow.close();
+            } catch (IOException e) {
+                Log.error("releasing " + f.origPath + " failed", e);
+            }
+            ReentrantLock lock = lockFor(f.path);
+            lockTimed(lock);
+            try {
+                cache.unpin(f.master);
+            } finally {
+                lock.unlock();
+            }
         }
 
         /* close:
          *   if fd invald, return errno;
-         *   if file an read copy, evict from cache if no one else reading it;
-         *   if file an write copy, evict and update on server.*/
+         *   if file an write copy, update on server;
+         *   then drop the fd's view of the master copy. */
 		public int close( int fd ) {
-            lock.lock();
-            if (dirArray.contains(fd)) {
-                dirArray.remove(new Integer(fd));
-                lock.unlock();
+            byte kind = fds.kind(fd);
+            MyFile f = fds.remove(fd);
+            if (kind == FdTable.DIR) {
                 return 0;
             }
-            MyFile f = fdTable.get(fd);
             if (f == null) {
-                lock.unlock();
                 return Errors.EBADF;
             }
             // check if any updated needed
             if (!f.readOnly) {
-                try {
-                    /* the orig file should be transformed to this write file */
-                    upload(f, fd);
-                    f.rF.close();
-                    String origFileName = getWriteOrig(f.path, fd);
-                    System.err.println("get upload " + f.origPath);
-                    /* delete the old version in cache,
-                     * update it to this write file*/
-                    cache.cover(origFileName, f);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                /* the view is uploaded and dropped in the background */
+                if (writeBack != null) {
+                    writeBack.submit(f, f.cow.length());
+                    return 0;
                 }
-            } else {
-                String origName = getReadOrig(f);
-                System.err.println("Trying to close orig: " + origName);
-                MyFile orig = cache.lookUp(origName);
-                if (orig != null) {
-                    orig.readerCount -= 1;
-                    f.readerCount -= 1;
-                    if (f.readerCount == 0) {
-                        try {
-                            f.rF.close();
-                            cache.evict(f);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    cache.update(orig);
-                }
-                else {
-                    /* if we have deleted the original master file
-                     * but by close semantics this is the latest
-                     * we push it back to the cache */
-                    f.readerCount -= 1;
-                    String masterPath = origName;
-                    String masterCache = getCachedPath(origName);
-                    MyFile newMaster = null;
-                    try {
-                        Files.move(Paths.get(f.cachePath), Paths.get(masterCache));
-                        newMaster = new MyFile(f, masterPath, masterCache, true);
-                        f.rF.close();
-                        if (f.readerCount == 0) {
-                            cache.evict(f);
-                        }
-                        if (!cache.hasSpace(newMaster.fileSize)) {
-                            boolean flag = cache.makeRoom(newMaster.fileSize);
-                        }
-                        cache.push(newMaster);
-                        cache.add(newMaster);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+                /* the upload only reads this fd's own view,
+                 * so it runs without holding the path lock */
+                boolean ok = upload(f);
+                if (Log.on(Log.DEBUG))
+                    Log.debug("get upload " + f.origPath);
+                if (!ok) {
+                    /* the server still has what it had, tell the client */
+                    release(f);
+                    return Errors.EBUSY;
                 }
             }
-            fdTable.remove(fd);
-            lock.unlock();
+            release(f);
             return 0;
 		}
 
+        /* flush: upload closed views for the write-back queue and drop
+         * them, several small ones are sent whole in one batch; those
+         * the batch could not place are uploaded one at a time */
+        public void flush(List<MyFile> views) {
+            if (views.size() == 1) {
+                if (!upload(views.get(0)))
+                    Log.error("write-back of " + views.get(0).origPath + " lost");
+                release(views.get(0));
+                return;
+            }
+            ArrayList<String> paths = new ArrayList<String>();
+            ArrayList<Bus> data = new ArrayList<Bus>();
+            ArrayList<MyFile> sent = new ArrayList<MyFile>();
+            ArrayList<MyFile> retry = new ArrayList<MyFile>();
+            try {
+                for (MyFile f : views) {
+                    int len = (int)f.cow.length();
+                    if (f.dirty.isEmpty() && len == f.fileSize)
+                        continue;
+                    Bus bus = new Bus(len);
+                    if (len > 0)
+                        f.cow.read(0, bus.buffer, 0, len);
+                    UPLOADED.add(len);
+                    if (serverCompress)
+                        BusCodec.compress(bus);
+                    paths.add(f.origPath);
+                    data.add(bus);
+                    sent.add(f);
+                }
+                if (!paths.isEmpty()) {
+                    boolean[] done = server.updateBatch(paths.toArray(new String[0]),
+                                                        data.toArray(new Bus[0]));
+                    for (int i = 0; i < done.length; i++) {
+                        if (done[i])
+                            breakLease(paths.get(i));
+                        else
+                            retry.add(sent.get(i));
+                    }
+                }
+                if (Log.on(Log.DEBUG))
+                    Log.debug("batch upload of " + paths.size() + " files");
+            } catch (IOException e) {
+                Log.error("batch upload failed, sending one by one", e);
+                retry = new ArrayList<MyFile>(views);
+            }
+            for (MyFile f : retry) {
+                if (!upload(f))
+                    Log.error("write-back of " + f.origPath + " lost");
+            }
+            for (MyFile f : views)
+                release(f);
+        }
+
         /* write: function for writing file
          *   Given file descriptor, find file from
          *   the file map, and perform normal operation
          *   on the randomFile
          */
 		public long write( int fd, byte[] buf ) {
-            if (dirArray.contains(fd)) {
-                return Errors.EISDIR;
-            }
-            MyFile f = fdTable.get(fd);
+            MyFile f = fds.get(fd);
             if (f == null) {
-                return Errors.EBADF;
+                return (fds.kind(fd) == FdTable.DIR) ? Errors.EISDIR : Errors.EBADF;
             }
             if (f.readOnly) {
                 return Errors.EBADF;
             }
+            /* blocks copied out of the master take cache space */
+            int blocks = f.cow.newBlocks(f.pos, buf.length);
+            if (blocks > 0 && !cache.charge((long)blocks * CowFile.BLOCK)) {
+                return Errors.ENOMEM;
+            }
             try {
-                f.rF.write(buf);
+                f.cow.write(f.pos, buf, 0, buf.length);
+                f.dirty.add(f.pos, f.pos + buf.length);
+                f.pos += buf.length;
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("write to " + f.origPath + " failed", e);
                 return Errors.EBUSY;
             }
             return buf.length;
@@ -460,26 +1309,24 @@ class Proxy {
 
         /* read: normal read operation */
 		public long read( int fd, byte[] buf ) {
-            if (dirArray.contains(fd)) {
-                return Errors.EISDIR;
-            }
-            MyFile f = fdTable.get(fd);
+            MyFile f = fds.get(fd);
             if (f == null) {
-                return Errors.EBADF;
+                return (fds.kind(fd) == FdTable.DIR) ? Errors.EISDIR : Errors.EBADF;
             }
             if (buf == null) {
-                System.err.println("buf null error \n");
+                Log.debug("buf null error");
                 return Errors.EINVAL;
             }
             long readLen = buf.length;
             try {
-                readLen = f.rF.read(buf);
+                readLen = f.cow.read(f.pos, buf, 0, buf.length);
                 // EOF
                 if (readLen == -1) {
                     return 0;
                 }
+                f.pos += readLen;
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("read from " + f.origPath + " failed", e);
                 return Errors.EBUSY;
             }
             return readLen;
@@ -487,78 +1334,60 @@ class Proxy {
 
         /* lseek: normal lseek operation */
 		public long lseek( int fd, long pos, LseekOption o ) {
-            if (dirArray.contains(fd)) {
-                return Errors.EISDIR;
-            }
             // get the file
-            MyFile f = fdTable.get(fd);
+            MyFile f = fds.get(fd);
             if (f == null) {
-                return Errors.EBADF;
+                return (fds.kind(fd) == FdTable.DIR) ? Errors.EISDIR : Errors.EBADF;
             }
             /* switch for option, for where to start */
+            long offset;
             switch (o) {
                 case FROM_CURRENT:
-                    try {
-                        long offset = f.rF.getFilePointer() + pos;
-                        f.rF.seek(offset);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        return Errors.EBUSY;
-                    }
+                    offset = f.pos + pos;
                     break;
                 case FROM_START:
-                    try {
-                        f.rF.seek(pos);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        return Errors.EBUSY;
-                    }
+                    offset = pos;
                     break;
                 case FROM_END:
-                    try {
-                        long offset = f.rF.length() + pos;
-                        f.rF.seek(offset);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        return Errors.EBUSY;
-                    }
+                    offset = f.cow.length() + pos;
                     break;
                 default:
                     return Errors.EINVAL;
             }
-            try {
-                long p = f.rF.getFilePointer();
-                return p;
-            } catch (Exception e) {
-                e.printStackTrace();
-                return Errors.EBUSY;
+            if (offset < 0) {
+                return Errors.EINVAL;
             }
+            f.pos = offset;
+            return offset;
 		}
 
         /* unlink: perform operation on randomFile instance */
 		public int unlink( String path ) {
-            System.err.println("Unlinking " + path);
+            Log.debug("Unlinking " + path);
+            if (writeBack != null)
+                writeBack.await(path);
             int r = 0;
             try {
                 /* unlink server files regardless of there is local copy.*/
                 r = server.unlinkFile(path);
             } catch (Exception e) {
-                e.printStackTrace();
+                Log.error("unlinking " + path + " failed", e);
                 return Errors.EBUSY;
             }
             return r;
 		}
 
-        /* clientdone: empty the hashmaps */
+        /* clientdone: drop every fd the client left open */
 		public void clientdone() {
-            for (MyFile f: fdTable.values()) {
-                try {
-                    f.rF.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            for (MyFile f: fds.clear()) {
+                release(f);
             }
-            fdTable.clear();
+            if (prefetcher != null)
+                Log.info(prefetcher.report());
+            if (compress)
+                Log.info(BusCodec.report());
+            if (writeBack != null)
+                Log.info(writeBack.report());
             return;
 		}
 
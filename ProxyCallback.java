@@ -0,0 +1,7 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/* calls the server makes back into a proxy that holds leases */
+public interface ProxyCallback extends Remote {
+    public void invalidate(String path) throws RemoteException;
+}
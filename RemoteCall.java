@@ -3,7 +3,21 @@ import java.rmi.RemoteException;
 
 public interface RemoteCall extends Remote {
     public FileInfo getVersion(String path, FileHandling.OpenOption o) throws RemoteException;
+    public FileInfo validate(String path, FileHandling.OpenOption o, long cachedVersion, int inline, int proxyId) throws RemoteException;
+    public int register(ProxyCallback cb) throws RemoteException;
+    public int registerPeer(PeerCall peer) throws RemoteException;
+    public void holding(String path, long version, int peerId) throws RemoteException;
+    public PeerCall[] peersFor(String path, long version, int peerId) throws RemoteException;
+    public void peerFailed(String path, PeerCall peer) throws RemoteException;
+    public void unregisterPeer(int peerId) throws RemoteException;
     public Bus sendToProxy(FileInfo fi, long offset) throws RemoteException;
+    public Delta.Script deltaToProxy(FileInfo fi, Delta.Signature sig) throws RemoteException;
     public void updateFromProxy(long offset, Bus bus, String path) throws RemoteException;
+    public boolean[] updateBatch(String[] paths, Bus[] data) throws RemoteException;
+    public long beginUpload(String path, long baseVersion, long length) throws RemoteException;
+    public void uploadChunk(long id, long offset, Bus bus) throws RemoteException;
+    public boolean commitUpload(long id) throws RemoteException;
+    public void abortUpload(long id) throws RemoteException;
+    public boolean resizeFromProxy(String path, long baseVersion, long length) throws RemoteException;
     public int unlinkFile(String path) throws RemoteException;
 }
@@ -0,0 +1,436 @@
+/* RpcClient.java:
+ *    the proxy's side of RpcServer: a RemoteCall whose calls go out as
+ *    Wire frames over a few connections, picked in turn. Calls do not
+ *    wait for each other, each is tagged with an id and its caller
+ *    sleeps until the connection's reader hands it the reply with that
+ *    id, so any number may be in flight on a connection at once.
+ *
+ *    A connection that breaks fails the calls waiting on it and is
+ *    opened again by the next call that picks it, outside any lock, so
+ *    a server that does not answer only holds up the calls meant for
+ *    it. A call with no reply within the timeout fails, and its
+ *    connection is dropped: a lost reply looks the same as a socket
+ *    that went half open.
+ *
+ *    Callbacks come on a connection of their own, which only carries
+ *    the register. When it breaks, the next validate that asks for a
+ *    lease opens it and registers again. The server hands out a new id
+ *    each time, so the proxy keeps the id of its first register and we
+ *    pass the current one on, the way ShardRing does per shard.
+ */
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RpcClient implements RemoteCall {
+    private final String host;
+    private final int port;
+    private final long timeout;     // ms a call waits for its reply
+    private final AtomicReferenceArray<Conn> conns;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicLong ids = new AtomicLong(1);
+    private volatile ProxyCallback callback;
+    private Conn events;        // the callback connection, or null
+    private int serverId;       // our id with the server on events
+
+    public RpcClient(String host, int port, int connections, long timeout)
+        throws IOException {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.conns = new AtomicReferenceArray<Conn>(Math.max(1, connections));
+        /* fail now rather than on the first open */
+        conns.set(0, new Conn());
+    }
+
+    /* a call waiting for its reply */
+    private static class Call {
+        private DataInputStream reply;
+        private boolean ok;
+        private IOException failed;
+
+        synchronized void done(DataInputStream in, boolean ok) {
+            this.reply = in;
+            this.ok = ok;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            this.failed = e;
+            notifyAll();
+        }
+
+        /* the reply, or null if none came within ms */
+        synchronized DataInputStream await(long ms) throws RemoteException {
+            boolean interrupted = false;
+            long deadline = System.currentTimeMillis() + ms;
+            while (reply == null && failed == null) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    break;
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (reply == null && failed == null)
+                return null;
+            if (failed != null)
+                throw new RemoteException("rpc connection lost", failed);
+            if (!ok) {
+                String msg;
+                try {
+                    msg = Wire.readString(reply);
+                } catch (IOException e) {
+                    msg = "unreadable error";
+                }
+                throw new RemoteException("server: " + msg);
+            }
+            return reply;
+        }
+    }
+
+    /* one connection and the calls in flight on it */
+    private class Conn implements Runnable {
+        private final SocketChannel sock;
+        private final ConcurrentHashMap<Long, Call> pending
+            = new ConcurrentHashMap<Long, Call>();
+        private volatile boolean dead;
+        private final ReentrantLock writing = new ReentrantLock();
+
+        Conn() throws IOException {
+            sock = SocketChannel.open(new InetSocketAddress(host, port));
+            sock.socket().setTcpNoDelay(true);
+            Thread t = new Thread(this, "rpc-reader");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        Call send(Wire.Frame f, long id) throws IOException {
+            Call c = new Call();
+            pending.put(id, c);
+            writing.lock();
+            try {
+                Wire.send(sock, f);
+            } catch (IOException e) {
+                pending.remove(id);
+                close(e);
+                throw e;
+            } finally {
+                writing.unlock();
+            }
+            /* the reader may have died before it could see us */
+            if (dead && pending.remove(id) != null)
+                throw new IOException("connection closed");
+            return c;
+        }
+
+        /* hand replies to their calls, and callbacks to the proxy */
+        public void run() {
+            ByteBuffer head = ByteBuffer.allocate(Wire.HEAD);
+            try {
+                while (true) {
+                    DataInputStream in = Wire.receive(sock, head);
+                    long id = in.readLong();
+                    byte op = in.readByte();
+                    if (op == Wire.INVALIDATE) {
+                        ProxyCallback cb = callback;
+                        if (cb != null)
+                            cb.invalidate(Wire.readString(in));
+                        continue;
+                    }
+                    Call c = pending.remove(id);
+                    if (c != null)
+                        c.done(in, op == Wire.OK);
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        void close(IOException e) {
+            dead = true;
+            try {
+                sock.close();
+            } catch (IOException x) {
+                Log.error("closing rpc connection failed", x);
+            }
+            for (Long id : pending.keySet()) {
+                Call c = pending.remove(id);
+                if (c != null)
+                    c.fail(e);
+            }
+        }
+    }
+
+    /* the next connection in turn, opened again if it broke; callers
+     * that race to reopen a slot each connect, the first one in is
+     * kept and the others close theirs */
+    private Conn conn() throws IOException {
+        int i = (next.getAndIncrement() & 0x7fffffff) % conns.length();
+        while (true) {
+            Conn c = conns.get(i);
+            if (c != null && !c.dead)
+                return c;
+            Conn fresh = new Conn();
+            if (conns.compareAndSet(i, c, fresh))
+                return fresh;
+            fresh.close(new IOException("not needed"));
+        }
+    }
+
+    /* send f, wait for the reply, positioned at its body */
+    private DataInputStream call(Wire.Frame f, long id) throws RemoteException {
+        Conn conn;
+        Call c;
+        try {
+            conn = conn();
+            c = conn.send(f, id);
+        } catch (IOException e) {
+            throw new RemoteException("rpc to " + host + ":" + port + " failed", e);
+        }
+        return reply(conn, c, id);
+    }
+
+    /* c's reply, dropping conn if it does not come in time */
+    private DataInputStream reply(Conn conn, Call c, long id) throws RemoteException {
+        DataInputStream in = c.await(timeout);
+        if (in != null)
+            return in;
+        conn.pending.remove(id);
+        IOException e = new IOException("no reply from " + host + ":" + port
+                                        + " in " + timeout + " ms");
+        conn.close(e);
+        throw new RemoteException("rpc timed out", e);
+    }
+
+    /* our id with the server while the callback connection is up,
+     * registering again if it broke; 0, so no lease, if that fails */
+    private synchronized int leaseId() {
+        if (callback == null)
+            return 0;
+        if (events != null && !events.dead)
+            return serverId;
+        long id = ids.getAndIncrement();
+        try {
+            events = new Conn();
+            Call c = events.send(new Wire.Frame(id, Wire.REGISTER), id);
+            serverId = reply(events, c, id).readInt();
+            Log.debug("callbacks registered as proxy " + serverId);
+            return serverId;
+        } catch (IOException e) {
+            Log.warn("callback connection down, check on use: " + e);
+            return 0;
+        }
+    }
+
+    public FileInfo getVersion(String path, FileHandling.OpenOption o)
+        throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.GET_VERSION);
+        try {
+            Wire.writeString(f.out, path);
+            Wire.writeOption(f.out, o);
+            return Wire.readInfo(call(f, id));
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    public FileInfo validate(String path, FileHandling.OpenOption o, long cachedVersion,
+                             int inline, int proxyId) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.VALIDATE);
+        try {
+            Wire.writeString(f.out, path);
+            Wire.writeOption(f.out, o);
+            f.out.writeLong(cachedVersion);
+            f.out.writeInt(inline);
+            f.out.writeInt(proxyId > 0 ? leaseId() : 0);
+            return Wire.readInfo(call(f, id));
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    /* callbacks come back on the connection the register went out
+     * on, kept for them alone; 1 is our id from then on */
+    public synchronized int register(ProxyCallback cb) throws RemoteException {
+        callback = cb;
+        events = null;
+        if (leaseId() == 0) {
+            callback = null;
+            throw new RemoteException("could not register with " + host + ":" + port);
+        }
+        return 1;
+    }
+
+    public int registerPeer(PeerCall peer) throws RemoteException {
+        throw new RemoteException("peers need the rmi transport");
+    }
+
+    public void holding(String path, long version, int peerId) throws RemoteException {
+        throw new RemoteException("peers need the rmi transport");
+    }
+
+    public PeerCall[] peersFor(String path, long version, int peerId)
+        throws RemoteException {
+        throw new RemoteException("peers need the rmi transport");
+    }
+
+    public void peerFailed(String path, PeerCall peer) throws RemoteException {
+        throw new RemoteException("peers need the rmi transport");
+    }
+
+    public void unregisterPeer(int peerId) throws RemoteException {
+        throw new RemoteException("peers need the rmi transport");
+    }
+
+    public Bus sendToProxy(FileInfo fi, long offset) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.SEND);
+        try {
+            Wire.writeInfo(f.out, fi);
+            f.out.writeLong(offset);
+            return Wire.readBus(call(f, id));
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    public Delta.Script deltaToProxy(FileInfo fi, Delta.Signature sig)
+        throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.DELTA);
+        try {
+            Wire.writeInfo(f.out, fi);
+            Wire.writeSignature(f.out, sig);
+            return Wire.readScript(call(f, id));
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    public void updateFromProxy(long offset, Bus bus, String path) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.UPDATE);
+        try {
+            f.out.writeLong(offset);
+            Wire.writeBus(f.out, bus);
+            Wire.writeString(f.out, path);
+        } catch (IOException e) {
+            throw remote(e);
+        }
+        call(f, id);
+    }
+
+    public boolean[] updateBatch(String[] paths, Bus[] data) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.UPDATE_BATCH);
+        try {
+            f.out.writeInt(paths.length);
+            for (int i = 0; i < paths.length; i++) {
+                Wire.writeString(f.out, paths[i]);
+                Wire.writeBus(f.out, data[i]);
+            }
+            DataInputStream in = call(f, id);
+            boolean[] done = new boolean[in.readInt()];
+            for (int i = 0; i < done.length; i++)
+                done[i] = in.readBoolean();
+            return done;
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    public long beginUpload(String path, long baseVersion, long length)
+        throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.BEGIN_UPLOAD);
+        try {
+            Wire.writeString(f.out, path);
+            f.out.writeLong(baseVersion);
+            f.out.writeLong(length);
+            return call(f, id).readLong();
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    public void uploadChunk(long session, long offset, Bus bus) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.UPLOAD_CHUNK);
+        try {
+            f.out.writeLong(session);
+            f.out.writeLong(offset);
+            Wire.writeBus(f.out, bus);
+        } catch (IOException e) {
+            throw remote(e);
+        }
+        call(f, id);
+    }
+
+    public boolean commitUpload(long session) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.COMMIT_UPLOAD);
+        try {
+            f.out.writeLong(session);
+            return call(f, id).readBoolean();
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    public void abortUpload(long session) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.ABORT_UPLOAD);
+        try {
+            f.out.writeLong(session);
+        } catch (IOException e) {
+            throw remote(e);
+        }
+        call(f, id);
+    }
+
+    public boolean resizeFromProxy(String path, long baseVersion, long length)
+        throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.RESIZE);
+        try {
+            Wire.writeString(f.out, path);
+            f.out.writeLong(baseVersion);
+            f.out.writeLong(length);
+            return call(f, id).readBoolean();
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    public int unlinkFile(String path) throws RemoteException {
+        long id = ids.getAndIncrement();
+        Wire.Frame f = new Wire.Frame(id, Wire.UNLINK);
+        try {
+            Wire.writeString(f.out, path);
+            return call(f, id).readInt();
+        } catch (IOException e) {
+            throw remote(e);
+        }
+    }
+
+    /* a decoding error, as the caller expects it */
+    private static RemoteException remote(IOException e) {
+        return (e instanceof RemoteException) ? (RemoteException) e
+            : new RemoteException("bad rpc reply", e);
+    }
+}
@@ -0,0 +1,240 @@
+/* RpcServer.java:
+ *    serves a RemoteCall over Wire frames instead of rmi. Each
+ *    connection has a reader taking requests off the socket, and
+ *    every request runs in a handler of its own, so a proxy may keep
+ *    many calls in flight on one connection and gets each reply as
+ *    soon as it is ready, in whatever order. Handlers run on virtual
+ *    threads when the runtime has them, else on a cached pool; only
+ *    the pool has been run and measured so far, on JDK 17.
+ *
+ *    A proxy that registers for callbacks gets them pushed on the
+ *    connection it registered on. Peer calls are rmi only.
+ */
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RpcServer {
+
+    /* serve: accept connections for target on port */
+    public static void serve(final RemoteCall target, int port) throws IOException {
+        final ServerSocketChannel listen = ServerSocketChannel.open();
+        listen.socket().setReuseAddress(true);
+        listen.socket().bind(new InetSocketAddress(port));
+        final ExecutorService handlers = handlers();
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        SocketChannel sock = listen.accept();
+                        sock.socket().setTcpNoDelay(true);
+                        final Conn c = new Conn(sock);
+                        handlers.execute(new Runnable() {
+                            public void run() {
+                                c.read(target, handlers);
+                            }
+                        });
+                    } catch (IOException e) {
+                        Log.error("rpc accept failed", e);
+                    }
+                }
+            }
+        }, "rpc-accept");
+        acceptor.start();
+        Log.info("Binary rpc on port " + port);
+    }
+
+    /* handlers: a virtual thread per task where there are virtual
+     * threads (looked up by name, this builds for older runtimes) */
+    static ExecutorService handlers() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            Log.info("rpc handlers on virtual threads");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "rpc");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /* one proxy connection, and the callback stub for it */
+    private static class Conn implements ProxyCallback {
+        private final SocketChannel sock;
+        /* not a monitor: a virtual thread blocked in a socket write
+         * while holding one would pin its carrier */
+        private final ReentrantLock writing = new ReentrantLock();
+
+        Conn(SocketChannel sock) {
+            this.sock = sock;
+        }
+
+        void write(Wire.Frame f) throws IOException {
+            writing.lock();
+            try {
+                Wire.send(sock, f);
+            } finally {
+                writing.unlock();
+            }
+        }
+
+        public void invalidate(String path) throws RemoteException {
+            Wire.Frame f = new Wire.Frame(0, Wire.INVALIDATE);
+            try {
+                Wire.writeString(f.out, path);
+                write(f);
+            } catch (IOException e) {
+                throw new RemoteException("proxy connection lost", e);
+            }
+        }
+
+        /* take requests off the socket until the proxy hangs up */
+        void read(final RemoteCall target, ExecutorService handlers) {
+            ByteBuffer head = ByteBuffer.allocate(Wire.HEAD);
+            try {
+                while (true) {
+                    final DataInputStream in;
+                    try {
+                        in = Wire.receive(sock, head);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    handlers.execute(new Runnable() {
+                        public void run() {
+                            handle(target, in);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                Log.warn("rpc connection dropped: " + e);
+            } finally {
+                try {
+                    sock.close();
+                } catch (IOException e) {
+                    Log.error("closing rpc connection failed", e);
+                }
+            }
+        }
+
+        private void handle(RemoteCall target, DataInputStream in) {
+            long id = 0;
+            Wire.Frame reply;
+            try {
+                id = in.readLong();
+                byte op = in.readByte();
+                reply = new Wire.Frame(id, Wire.OK);
+                call(target, op, in, reply);
+            } catch (Exception e) {
+                reply = new Wire.Frame(id, Wire.ERROR);
+                try {
+                    Wire.writeString(reply.out, e.toString());
+                } catch (IOException x) {
+                    throw new AssertionError(x);
+                }
+            }
+            try {
+                write(reply);
+            } catch (IOException e) {
+                Log.warn("rpc reply lost: " + e);
+            }
+        }
+
+        /* decode op's arguments from in, call target, encode the result */
+        private void call(RemoteCall target, byte op, DataInputStream in, Wire.Frame reply)
+            throws IOException {
+            switch (op) {
+            case Wire.GET_VERSION: {
+                String path = Wire.readString(in);
+                Wire.writeInfo(reply.out, target.getVersion(path, Wire.readOption(in)));
+                break;
+            }
+            case Wire.VALIDATE: {
+                String path = Wire.readString(in);
+                FileHandling.OpenOption o = Wire.readOption(in);
+                long cached = in.readLong();
+                int inline = in.readInt();
+                int proxyId = in.readInt();
+                Wire.writeInfo(reply.out, target.validate(path, o, cached, inline, proxyId));
+                break;
+            }
+            case Wire.REGISTER:
+                reply.out.writeInt(target.register(this));
+                break;
+            case Wire.SEND: {
+                FileInfo fi = Wire.readInfo(in);
+                Wire.writeBus(reply.out, target.sendToProxy(fi, in.readLong()));
+                break;
+            }
+            case Wire.DELTA: {
+                FileInfo fi = Wire.readInfo(in);
+                Wire.writeScript(reply.out,
+                                 target.deltaToProxy(fi, Wire.readSignature(in)));
+                break;
+            }
+            case Wire.UPDATE: {
+                long offset = in.readLong();
+                Bus bus = Wire.readBus(in);
+                target.updateFromProxy(offset, bus, Wire.readString(in));
+                break;
+            }
+            case Wire.UPDATE_BATCH: {
+                int n = in.readInt();
+                String[] paths = new String[n];
+                Bus[] data = new Bus[n];
+                for (int i = 0; i < n; i++) {
+                    paths[i] = Wire.readString(in);
+                    data[i] = Wire.readBus(in);
+                }
+                boolean[] done = target.updateBatch(paths, data);
+                reply.out.writeInt(done.length);
+                for (boolean d : done)
+                    reply.out.writeBoolean(d);
+                break;
+            }
+            case Wire.BEGIN_UPLOAD: {
+                String path = Wire.readString(in);
+                long base = in.readLong();
+                reply.out.writeLong(target.beginUpload(path, base, in.readLong()));
+                break;
+            }
+            case Wire.UPLOAD_CHUNK: {
+                long id = in.readLong();
+                long offset = in.readLong();
+                target.uploadChunk(id, offset, Wire.readBus(in));
+                break;
+            }
+            case Wire.COMMIT_UPLOAD:
+                reply.out.writeBoolean(target.commitUpload(in.readLong()));
+                break;
+            case Wire.ABORT_UPLOAD:
+                target.abortUpload(in.readLong());
+                break;
+            case Wire.RESIZE: {
+                String path = Wire.readString(in);
+                long base = in.readLong();
+                reply.out.writeBoolean(target.resizeFromProxy(path, base, in.readLong()));
+                break;
+            }
+            case Wire.UNLINK:
+                reply.out.writeInt(target.unlinkFile(Wire.readString(in)));
+                break;
+            default:
+                throw new IOException("unknown rpc " + op);
+            }
+        }
+    }
+}
@@ -6,33 +6,100 @@ import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.File;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import java.rmi.registry.*;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.Naming;
 import java.rmi.RemoteException;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.Path;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class Server extends UnicastRemoteObject implements RemoteCall {
     private static String root;
+    // staging files of uploads, see beginUpload
+    private static Path staging;
     private static int port;
+    // port of the bulk data channel, 0 when there is none
+    private static int dataPort;
+    // one of several shards (-Dshard=on): a create makes the missing
+    // parent directories, they may only exist on the shard owning the
+    // directory's own path, see ShardRing
+    private static boolean shard;
+    // how long a proxy may trust a version without asking again
+    public static final long LEASE = 10000;
+
+    /* proxies that take invalidation callbacks, by id */
+    private final ConcurrentHashMap<Integer, ProxyCallback> proxies
+        = new ConcurrentHashMap<Integer, ProxyCallback>();
+    private final AtomicInteger proxyIds = new AtomicInteger(1);
+    /* attributes of server files, see MetaCache */
+    private final MetaCache meta;
+    /* proxies that serve their cached masters to the others, by id */
+    private final ConcurrentHashMap<Integer, PeerCall> peers
+        = new ConcurrentHashMap<Integer, PeerCall>();
+    /* which peers said they have a path cached, see Holders */
+    private final ConcurrentHashMap<String, Holders> cachedBy
+        = new ConcurrentHashMap<String, Holders>();
+    /* upload sessions in progress, see beginUpload */
+    private final ConcurrentHashMap<Long, Upload> uploads
+        = new ConcurrentHashMap<Long, Upload>();
+    private final AtomicLong uploadIds = new AtomicLong(1);
+    /* open read handles, see HandlePool */
+    private final HandlePool pool = new HandlePool();
+    /* leases handed out: path -> proxy id -> expiry time */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>> leases
+        = new ConcurrentHashMap<String, ConcurrentHashMap<Integer, Long>>();
     // max chunk size for data transfering
     public static final int busSize = 1024 * 1024;
+    // literal bytes a delta may carry, past that a download is cheaper
+    public static final int DELTA_LITERAL = 4 * busSize;
+    // peers remembered per path, and handed out per miss
+    public static final int HOLDERS = 8;
+    public static final int PEERS = 3;
+    // upload sessions idle this long are dropped
+    public static final long UPLOAD_IDLE = 10 * 60 * 1000;
+
+    /* metrics, see Metrics; rpc latencies are recorded by the wrapper
+     * exported in main */
+    private static final Metrics.Counter SENT = Metrics.counter("bytes.sent");
+    private static final Metrics.Counter RECEIVED = Metrics.counter("bytes.received");
+    private static final Metrics.Histogram LOCK_WAIT = Metrics.histogram("lock.wait");
 
     public Server(String[] args) throws RemoteException {
         Server.port = Integer.parseInt(args[0]);
+        Server.dataPort = (args.length > 2) ? Integer.parseInt(args[2]) : 0;
+        Server.shard = "on".equals(System.getProperty("shard"));
         File f = new File(args[1]);
         Server.root = null;
         try {
             Server.root = f.getCanonicalPath();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("bad root " + args[1], e);
+        }
+        meta = new MetaCache(Server.root);
+        Server.staging = Paths.get(root, ".uploads");
+        try {
+            Files.createDirectories(staging);
+        } catch (IOException e) {
+            Log.error("no staging dir for uploads", e);
         }
-        System.err.println("Server with root: " + this.root);
+        Log.info("Server with root: " + this.root);
     }
 
     /* Get the file path under serverDir */
@@ -42,10 +109,29 @@ public class Server extends UnicastRemoteObject implements RemoteCall {
             sPath += path;
         else
             sPath += "/" + path;
-        System.err.println("Server path for file: " + sPath);
         return sPath;
     }
 
+    /* Get the file for path if it lies under the root and outside the
+     * upload staging dir, null otherwise; every path a proxy sends is
+     * checked here before it is used */
+    public File checkedFile(String path) {
+        File s = new File(getServerPath(path));
+        try {
+            if (!s.getCanonicalPath().startsWith(root) || staged(s.getPath()))
+                return null;
+        } catch (IOException e) {
+            Log.error("resolving " + path + " failed", e);
+            return null;
+        }
+        return s;
+    }
+
+    /* a file under the upload staging dir, no proxy may name those */
+    private static boolean staged(String sPath) {
+        return Paths.get(sPath).normalize().startsWith(staging);
+    }
+
     /* Get File Version, reply in a FileInfo struct, only care about
      * errno (FileNotFound), versionNumber, and size.
      */
@@ -53,75 +139,75 @@ public class Server extends UnicastRemoteObject implements RemoteCall {
         throws RemoteException {
         String sPath = getServerPath(path);
         FileInfo reply = null;
-        String sAbs = null;
-        File s = new File(sPath);
-        reply = new FileInfo(s);
-        reply.path = path;
-        reply.sPath = sPath;
+        MetaCache.Meta m = meta.get(sPath);
 
         // Check if the path is in the server root dir
-        try {
-            sAbs = s.getCanonicalPath();
-            if (!sAbs.startsWith(root)) {
-                System.err.println(sAbs);
-                System.err.println("File: " + sPath + " not found.");
-                // pack FileNotFound info into reply
-                reply = new FileInfo(FileHandling.Errors.EPERM);
-                return reply;
-            }
-        } catch (IOException e) {
-            System.err.println("getversion error");
-            e.printStackTrace();
+        if (!m.inRoot || staged(sPath)) {
+            Log.debug("File: " + sPath + " not found.");
+            // pack FileNotFound info into reply
+            reply = new FileInfo(FileHandling.Errors.EPERM);
+            return reply;
         }
 
-
         /* Check Errono */
         /* Check exists */
-        if (!s.exists()) {
+        if (!m.exist) {
             if (o != FileHandling.OpenOption.CREATE
              && o != FileHandling.OpenOption.CREATE_NEW) {
+                reply = m.info();
                 reply.errno = FileHandling.Errors.ENOENT;
-                System.err.println("R/W on not exists file");
+                Log.debug("R/W on not exists file");
                 return reply;
             } else {
                 /* the operation call on create, so we create a file */
                 try {
-                    s.createNewFile();
+                    Path parent = Paths.get(sPath).getParent();
+                    if (shard && parent != null && !Files.isDirectory(parent)) {
+                        Files.createDirectories(parent);
+                        meta.invalidate(parent.toString());
+                    }
+                    new File(sPath).createNewFile();
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    Log.error("creating " + sPath + " failed", e);
                 }
+                meta.invalidate(sPath);
+                m = meta.get(sPath);
             }
         } else {
             if (o == FileHandling.OpenOption.CREATE_NEW) {
+                reply = m.info();
                 reply.errno = FileHandling.Errors.EEXIST;
-                System.err.println("Creating an already existed file");
+                Log.debug("Creating an already existed file");
                 return reply;
             }
         }
+        reply = m.info();
+        /* we understand deflated chunks, and send them if asked to */
+        reply.compress = true;
 
         /* Check Dir */
-        if (s.isDirectory()) {
+        if (m.isDir) {
             if (o != FileHandling.OpenOption.READ) {
-                System.err.println("Can't open dir, not read");
+                Log.debug("Can't open dir, not read");
                 reply.errno = FileHandling.Errors.EISDIR;
                 return reply;
             }
         }
 
         /* Check for permissions */
-        if (!s.canRead()) {
+        if (!m.canRead) {
             if (o == FileHandling.OpenOption.READ ||
                     o == FileHandling.OpenOption.WRITE ||
                     o == FileHandling.OpenOption.CREATE) {
-                System.err.println(" can't read, permission denied ");
+                Log.debug("can't read, permission denied");
                 reply.errno = FileHandling.Errors.EPERM;
                 return reply;
             }
         }
-        if (!s.canWrite()) {
+        if (!m.canWrite) {
             if (o == FileHandling.OpenOption.WRITE ||
                     o == FileHandling.OpenOption.CREATE) {
-                System.err.println("Can't write. permission denied ");
+                Log.debug("Can't write. permission denied");
                 reply.errno = FileHandling.Errors.EPERM;
                 return reply;
             }
@@ -129,66 +215,525 @@ public class Server extends UnicastRemoteObject implements RemoteCall {
 
         reply.path = path;
         reply.sPath = sPath;
+        reply.dataPort = dataPort;
+        return reply;
+    }
+
+    /* getVersion plus the start of the file in one round trip: if the
+     * proxy's cachedVersion is stale the reply carries the whole file
+     * when it is at most inline bytes, else its first chunk */
+    public FileInfo validate(String path, FileHandling.OpenOption o,
+                             long cachedVersion, int inline, int proxyId)
+        throws RemoteException {
+        /* the lease is recorded before the version is read, so any
+         * change after that read calls the proxy back */
+        long lease = grant(path, proxyId);
+        FileInfo reply = getVersion(path, o);
+        if (reply.errno != 0 || reply.isDir)
+            return reply;
+        reply.lease = lease;
+        if (reply.version == cachedVersion)
+            return reply;
+        if (reply.size > 0 && inline > 0)
+            reply.data = readChunk(reply.sPath, 0, Math.min(inline, busSize),
+                                   reply.version);
         return reply;
     }
 
-    /* read a file and put info on the bus, send to proxy */
+    /* a proxy signs up for invalidation callbacks, returns its id */
+    public int register(ProxyCallback cb) throws RemoteException {
+        int id = proxyIds.getAndIncrement();
+        proxies.put(id, cb);
+        Log.info("proxy " + id + " registered for callbacks");
+        return id;
+    }
+
+    /* a proxy offers its cached masters to the others, returns its id */
+    public int registerPeer(PeerCall peer) throws RemoteException {
+        int id = proxyIds.getAndIncrement();
+        peers.put(id, peer);
+        Log.info("proxy " + id + " registered as a peer");
+        return id;
+    }
+
+    /* the last few peers to cache one version of a path, newest
+     * first; a newer version forgets the older one's holders */
+    private static class Holders {
+        long version;
+        final ArrayDeque<Integer> ids = new ArrayDeque<Integer>();
+
+        synchronized void add(long v, int id) {
+            if (v != version) {
+                version = v;
+                ids.clear();
+            }
+            ids.remove(id);
+            ids.addFirst(id);
+            if (ids.size() > HOLDERS)
+                ids.removeLast();
+        }
+
+        /* up to n holders of version v other than id, starting at a
+         * random one so a burst of misses spreads over all of them */
+        synchronized int[] pick(long v, int id, int n) {
+            if (v != version || ids.isEmpty())
+                return new int[0];
+            Integer[] all = ids.toArray(new Integer[0]);
+            int[] out = new int[Math.min(n, all.length)];
+            int k = 0;
+            int first = ThreadLocalRandom.current().nextInt(all.length);
+            for (int i = 0; i < all.length && k < out.length; i++) {
+                int h = all[(first + i) % all.length];
+                if (h != id)
+                    out[k++] = h;
+            }
+            return Arrays.copyOf(out, k);
+        }
+
+        synchronized void drop(int id) {
+            ids.remove(id);
+        }
+    }
+
+    /* a peer now caches path at version, ignored if that is not the
+     * current version any more */
+    public void holding(String path, long version, int peerId) throws RemoteException {
+        if (!peers.containsKey(peerId))
+            return;
+        if (meta.get(getServerPath(path)).version != version)
+            return;
+        String key = leaseKey(path);
+        Holders h = cachedBy.get(key);
+        if (h == null) {
+            cachedBy.putIfAbsent(key, new Holders());
+            h = cachedBy.get(key);
+        }
+        h.add(version, peerId);
+    }
+
+    /* peers that said they cache path at version, the asker left out;
+     * they may have evicted it since, the asker falls back to us */
+    public PeerCall[] peersFor(String path, long version, int peerId)
+        throws RemoteException {
+        Holders h = cachedBy.get(leaseKey(path));
+        if (h == null)
+            return null;
+        ArrayList<PeerCall> out = new ArrayList<PeerCall>();
+        for (int id : h.pick(version, peerId, PEERS)) {
+            PeerCall p = peers.get(id);
+            if (p != null)
+                out.add(p);
+            else
+                h.drop(id);
+        }
+        return out.isEmpty() ? null : out.toArray(new PeerCall[0]);
+    }
+
+    /* a proxy could not read path from peer, a stub peersFor handed
+     * out: stop offering peer for path, it has dropped the file or is
+     * gone; stubs of one export compare equal, so we find its id */
+    public void peerFailed(String path, PeerCall peer) throws RemoteException {
+        Holders h = cachedBy.get(leaseKey(path));
+        if (h == null)
+            return;
+        for (Map.Entry<Integer, PeerCall> p : peers.entrySet()) {
+            if (p.getValue().equals(peer)) {
+                h.drop(p.getKey());
+                return;
+            }
+        }
+    }
+
+    /* a peer is shutting down; peersFor drops its holder entries as
+     * it comes across them */
+    public void unregisterPeer(int peerId) throws RemoteException {
+        if (peers.remove(peerId) != null)
+            Log.info("proxy " + peerId + " left as a peer");
+    }
+
+    /* lease path to a registered proxy, returns its length or 0 */
+    private long grant(String path, int proxyId) {
+        if (proxyId <= 0 || !proxies.containsKey(proxyId))
+            return 0;
+        String key = leaseKey(path);
+        ConcurrentHashMap<Integer, Long> holders = leases.get(key);
+        if (holders == null) {
+            leases.putIfAbsent(key, new ConcurrentHashMap<Integer, Long>());
+            holders = leases.get(key);
+        }
+        holders.put(proxyId, System.currentTimeMillis() + LEASE);
+        return LEASE;
+    }
+
+    /* call back every proxy with a live lease on path, done after a
+     * change is on disk so a proxy that asks again sees it */
+    private void invalidate(String path) {
+        /* cached copies of the old version are no use to anyone */
+        cachedBy.remove(leaseKey(path));
+        ConcurrentHashMap<Integer, Long> holders = leases.remove(leaseKey(path));
+        if (holders == null) return;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, Long> h : holders.entrySet()) {
+            if (h.getValue() < now) continue;
+            ProxyCallback cb = proxies.get(h.getKey());
+            if (cb == null) continue;
+            try {
+                cb.invalidate(path);
+            } catch (RemoteException e) {
+                /* gone, its leases run out on their own */
+                Log.warn("dropping proxy " + h.getKey());
+                proxies.remove(h.getKey());
+            }
+        }
+    }
+
+    private static String leaseKey(String path) {
+        return Paths.get(path).normalize().toString();
+    }
+
+    /* the server file of a FileInfo getVersion handed out; its sPath
+     * comes back from the proxy, so it is worked out again from path */
+    private String servedPath(FileInfo fi) throws RemoteException {
+        if (fi.path == null || checkedFile(fi.path) == null)
+            throw new RemoteException("no access to " + fi.path);
+        return getServerPath(fi.path);
+    }
+
+    /* read a file and put info on the bus, send to proxy; null once
+     * the version fi names is gone, the proxy has to ask again */
     public Bus sendToProxy(FileInfo fi, long offset) throws RemoteException {
         assert(!fi.isDir);
-        String path = fi.path;
-        String sPath = fi.sPath;
-        File file = new File(sPath);
-        RandomAccessFile bF  = null;
-        int readCount = 0;
+        Bus bus = readChunk(servedPath(fi), offset, busSize, fi.version);
+        if (bus != null && fi.compress)
+            BusCodec.compress(bus);
+        return bus;
+    }
+
+    /* the version fi names as a delta against the proxy's stale copy,
+     * null if the file moved on meanwhile, is too big to map, or
+     * differs in more than half its bytes or DELTA_LITERAL of them */
+    public Delta.Script deltaToProxy(FileInfo fi, Delta.Signature sig)
+        throws RemoteException {
+        String sPath = servedPath(fi);
+        ReentrantReadWriteLock.ReadLock rl = pool.lockFor(sPath).readLock();
+        lockTimed(rl);
         try {
-            bF = new RandomAccessFile(file, "r");
-        } catch (FileNotFoundException e) {
-            System.err.println("downlaoding file not found on server");
-            e.printStackTrace();
+            HandlePool.Handle h = pool.acquire(sPath, meta.get(sPath).version);
+            try {
+                ByteBuffer data = h.mapped();
+                if (h.version != fi.version || data == null)
+                    return null;
+                return Delta.script(sig, data, Math.min(h.size / 2, DELTA_LITERAL));
+            } finally {
+                pool.release(h);
+            }
+        } catch (IOException e) {
+            Log.error("delta for " + fi.path + " failed", e);
+            return null;
+        } finally {
+            rl.unlock();
         }
+    }
 
-        readCount = (int)file.length() - (int)offset;
-        if (readCount > busSize) readCount = busSize;
-        Bus bus = new Bus(readCount);
-
+    /* read up to max bytes of the file at version at offset onto a
+     * bus, through a pooled handle so a download opens the file only
+     * once; null if that version is gone */
+    private Bus readChunk(String sPath, long offset, int max, long version) {
+        ReentrantReadWriteLock.ReadLock rl = pool.lockFor(sPath).readLock();
+        lockTimed(rl);
         try {
-            bF.seek(offset);
-            readCount = bF.read(bus.buffer, 0, readCount);
-            if (readCount == -1) readCount = 0;
-            bF.close();
+            HandlePool.Handle h = acquireHandle(sPath, version);
+            if (h == null)
+                return null;
+            try {
+                int readCount = (int)Math.max(0, Math.min(h.size - offset, max));
+                Bus bus = new Bus(readCount);
+                bus.size = h.read(offset, bus.buffer, readCount);
+                SENT.add(bus.size);
+                return bus;
+            } finally {
+                pool.release(h);
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("downlaoding file not found on server", e);
+            return new Bus(0);
+        } finally {
+            rl.unlock();
         }
+    }
 
-        if (readCount == 0)
-            bus.size = bus.buffer.length;
-        else
-            bus.size = readCount;
+    /* a pooled read handle on sPath at version, null once that
+     * version is neither the current one nor still open; the caller
+     * holds the path's read lock */
+    public HandlePool.Handle acquireHandle(String sPath, long version)
+        throws IOException {
+        HandlePool.Handle h = pool.acquireAt(sPath, version);
+        if (h == null && meta.get(sPath).version == version)
+            h = pool.acquire(sPath, version);
+        return h;
+    }
+    public void releaseHandle(HandlePool.Handle h) {
+        pool.release(h);
+    }
+    /* the read lock to hold around acquireHandle and releaseHandle */
+    public Lock readLockFor(String sPath) {
+        return pool.lockFor(sPath).readLock();
+    }
 
-        return bus;
+    /* lockTimed: take a file lock, recording how long it took */
+    private static void lockTimed(Lock lock) {
+        if (lock.tryLock()) {
+            LOCK_WAIT.record(0);
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        LOCK_WAIT.since(start);
     }
 
     /* getting write update from the proxy */
     public void updateFromProxy(long offset, Bus bus,String path) throws RemoteException {
         String sPath = getServerPath(path);
-        System.err.println("updating to");
-        System.err.println(sPath);
+        if (Log.on(Log.DEBUG))
+            Log.debug("updating to " + sPath);
+        if (checkedFile(path) == null)
+            throw new RemoteException("no access to " + path);
         File f = new File(sPath);
+        ReentrantReadWriteLock.WriteLock wl = pool.lockFor(sPath).writeLock();
+        lockTimed(wl);
         try {
+            BusCodec.expand(bus);
+            pool.invalidate(sPath);
             RandomAccessFile rF = new RandomAccessFile(f, "rw");
             rF.seek(offset);
             rF.write(bus.buffer, 0, bus.size);
             rF.close();
+            RECEIVED.add(bus.size);
         } catch (IOException e) {
-            System.err.println("error happens updating file from proxy");
-            e.printStackTrace();
+            Log.error("error happens updating file from proxy", e);
+        } finally {
+            wl.unlock();
         }
+        meta.invalidate(sPath);
+        invalidate(path);
     }
 
-    public synchronized int unlinkFile(String path) {
-        System.err.println("unlinking server" + path);
+    /* whole small files from the proxy's write-back queue, applied in
+     * order, each replaced at once as if uploaded in a session; the
+     * result says which of them made it */
+    public boolean[] updateBatch(String[] paths, Bus[] data) throws RemoteException {
+        boolean[] done = new boolean[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                BusCodec.expand(data[i]);
+            } catch (IOException e) {
+                Log.error("batched upload of " + paths[i] + " unreadable", e);
+                continue;
+            }
+            long id = beginUpload(paths[i], -1, data[i].size);
+            if (id <= 0) {
+                Log.warn("batched upload of " + paths[i] + " refused");
+                continue;
+            }
+            if (data[i].size > 0)
+                uploadChunk(id, 0, data[i]);
+            done[i] = commitUpload(id);
+        }
+        return done;
+    }
+
+    /* an upload session: the new contents are put together in a
+     * staging file and renamed over the file on commit */
+    private static class Upload {
+        final String path;
+        final String sPath;
+        final Path file;
+        final RandomAccessFile raf;
+        volatile long touched;
+        volatile boolean failed;
+
+        Upload(String path, String sPath, Path file) throws IOException {
+            this.path = path;
+            this.sPath = sPath;
+            this.file = file;
+            this.raf = new RandomAccessFile(file.toFile(), "rw");
+            this.touched = System.currentTimeMillis();
+        }
+
+        void discard() {
+            try {
+                raf.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                Log.error("discarding upload of " + path + " failed", e);
+            }
+        }
+    }
+
+    /* start replacing path with length bytes. With a baseVersion the
+     * staging file starts as a copy of the file, so only the changed
+     * ranges need sending; 0 is returned if the file is no longer at
+     * baseVersion, -1 if the session could not be set up. baseVersion
+     * -1 starts from an empty file. */
+    public long beginUpload(String path, long baseVersion, long length)
+        throws RemoteException {
+        dropIdleUploads();
+        File target = checkedFile(path);
+        if (target == null)
+            return -1;
+        String sPath = getServerPath(path);
+        long id = uploadIds.getAndIncrement();
+        Upload u = null;
+        try {
+            u = new Upload(path, sPath, staging.resolve(Long.toString(id)));
+            if (baseVersion != -1) {
+                ReentrantReadWriteLock.ReadLock rl = pool.lockFor(sPath).readLock();
+                lockTimed(rl);
+                try {
+                    MetaCache.Meta m = meta.get(sPath);
+                    if (!m.exist || m.version != baseVersion) {
+                        u.discard();
+                        return 0;
+                    }
+                    FileChannel src = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+                    try {
+                        long n = src.size();
+                        for (long pos = 0; pos < n; )
+                            pos += u.raf.getChannel().transferFrom(src, pos, n - pos);
+                    } finally {
+                        src.close();
+                    }
+                } finally {
+                    rl.unlock();
+                }
+            }
+            u.raf.setLength(length);
+        } catch (IOException e) {
+            Log.error("cannot start upload of " + path, e);
+            if (u != null)
+                u.discard();
+            return -1;
+        }
+        uploads.put(id, u);
+        Log.debug("upload " + id + " of " + path + " begins");
+        return id;
+    }
+
+    /* one piece of an upload, at any offset and from any thread */
+    public void uploadChunk(long id, long offset, Bus bus) throws RemoteException {
+        Upload u = uploads.get(id);
+        if (u == null)
+            throw new RemoteException("no upload session " + id);
+        u.touched = System.currentTimeMillis();
+        try {
+            BusCodec.expand(bus);
+            ByteBuffer buf = ByteBuffer.wrap(bus.buffer, 0, bus.size);
+            FileChannel ch = u.raf.getChannel();
+            while (buf.hasRemaining())
+                ch.write(buf, offset + buf.position());
+            RECEIVED.add(bus.size);
+        } catch (IOException e) {
+            Log.error("error writing upload " + id, e);
+            u.failed = true;
+        }
+    }
+
+    /* rename the staging file over the file, which readers then see
+     * whole at a new version; false if the upload went wrong */
+    public boolean commitUpload(long id) throws RemoteException {
+        Upload u = uploads.remove(id);
+        if (u == null)
+            return false;
+        if (u.failed) {
+            u.discard();
+            return false;
+        }
+        File f = new File(u.sPath);
+        ReentrantReadWriteLock.WriteLock wl = pool.lockFor(u.sPath).writeLock();
+        lockTimed(wl);
+        try {
+            u.raf.close();
+            /* a new version even if the clock has not moved on; set on
+             * the staging file, the rename keeps it, so the file never
+             * shows up under its path with an old or missing version */
+            long version = Math.max(System.currentTimeMillis(), f.lastModified() + 1);
+            if (!u.file.toFile().setLastModified(version))
+                throw new IOException("could not set the version of " + u.file);
+            Files.move(u.file, f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            pool.supersede(u.sPath);
+            /* before readers get in, or they would label the new
+             * file with the old version */
+            meta.invalidate(u.sPath);
+        } catch (IOException e) {
+            Log.error("error committing upload of " + u.path, e);
+            u.discard();
+            return false;
+        } finally {
+            wl.unlock();
+        }
+        invalidate(u.path);
+        Log.debug("upload " + id + " of " + u.path + " committed");
+        return true;
+    }
+
+    public void abortUpload(long id) throws RemoteException {
+        Upload u = uploads.remove(id);
+        if (u != null)
+            u.discard();
+    }
+
+    /* sessions of proxies that went away */
+    private void dropIdleUploads() {
+        long old = System.currentTimeMillis() - UPLOAD_IDLE;
+        for (Map.Entry<Long, Upload> e : uploads.entrySet()) {
+            if (e.getValue().touched < old && uploads.remove(e.getKey(), e.getValue())) {
+                Log.warn("dropping idle upload of " + e.getValue().path);
+                e.getValue().discard();
+            }
+        }
+    }
+
+    /* set the length of a file before the proxy sends its changed
+     * ranges; refused if the file is no longer at baseVersion, which
+     * tells the proxy to send the whole file. baseVersion -1 always
+     * applies. */
+    public boolean resizeFromProxy(String path, long baseVersion, long length)
+        throws RemoteException {
         String sPath = getServerPath(path);
+        if (checkedFile(path) == null)
+            return false;
+        MetaCache.Meta m = meta.get(sPath);
+        if (baseVersion != -1 && (!m.exist || m.version != baseVersion))
+            return false;
         File f = new File(sPath);
+        ReentrantReadWriteLock.WriteLock wl = pool.lockFor(sPath).writeLock();
+        lockTimed(wl);
+        try {
+            pool.invalidate(sPath);
+            RandomAccessFile rF = new RandomAccessFile(f, "rw");
+            if (rF.length() != length)
+                rF.setLength(length);
+            rF.close();
+        } catch (IOException e) {
+            Log.error("error happens resizing file from proxy", e);
+            return false;
+        } finally {
+            wl.unlock();
+        }
+        meta.invalidate(sPath);
+        invalidate(path);
+        return true;
+    }
+
+    public synchronized int unlinkFile(String path) {
+        Log.debug("unlinking server " + path);
+        String sPath = getServerPath(path);
+        /* a session's staging file, or outside the root altogether */
+        File f = checkedFile(path);
+        if (f == null) {
+            return FileHandling.Errors.EPERM;
+        }
         if (!f.exists()) {
             return FileHandling.Errors.ENOENT;
         }
@@ -199,20 +744,35 @@ public class Server extends UnicastRemoteObject implements RemoteCall {
             return FileHandling.Errors.EPERM;
         }
 
+        pool.invalidate(sPath);
         f.delete();
+        meta.invalidate(sPath);
+        invalidate(path);
         return 0;
     }
 
     public static void main(String[] args) {
-        assert(args.length == 2);
+        /* args: port root [dataPort], -DrpcPort=<port> adds the
+         * binary transport, -Dshard=on when behind a ShardRing */
+        assert(args.length >= 2);
         try {
             Server server = new Server(args);
             LocateRegistry.createRegistry(server.port);
-            Naming.rebind("//127.0.0.1:" + args[0] + "/Server", server);
+            /* proxies call through a wrapper that times every rpc */
+            RemoteCall timed = Metrics.timed(RemoteCall.class, server, "rpc.");
+            UnicastRemoteObject.exportObject(timed, 0);
+            Naming.rebind("//127.0.0.1:" + args[0] + "/Server", timed);
+            Metrics.start("server", Long.getLong("metricsDump", 0));
+            /* the binary transport next to rmi, see RpcServer */
+            int rpcPort = Integer.getInteger("rpcPort", 0);
+            if (rpcPort > 0)
+                RpcServer.serve(timed, rpcPort);
+            if (dataPort > 0)
+                DataChannel.serve(server, dataPort);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("server failed to start", e);
         }
-        System.err.println("Server ok");
+        Log.info("Server ok");
     }
 
 }
@@ -0,0 +1,254 @@
+/* ShardRing.java:
+ *    several servers seen as one RemoteCall. Every path belongs to the
+ *    server owning the first of the ring's points at or after the
+ *    path's hash; each server has VNODES points, so the paths spread
+ *    evenly and adding or removing a server only moves the paths on
+ *    the arcs it gains or loses, about 1/n of them.
+ *
+ *    Callbacks and peers are registered with every server, the ring
+ *    hands out its own ids and translates them for the shard. FileInfo
+ *    replies carry the shard's host for the data channel.
+ *
+ *    A nested path and its directory may hash to different servers,
+ *    so the shards have to run with -Dshard=on: a create then makes
+ *    whatever parent directories its server lacks.
+ */
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ShardRing implements RemoteCall {
+    public static final int VNODES = 160;
+
+    private static class Shard {
+        final String name;      // host:port
+        final String host;
+        final RemoteCall server;
+        int proxyId;            // our id with it for callbacks
+        int peerId;             // and as a peer
+
+        Shard(String name, String host, RemoteCall server) {
+            this.name = name;
+            this.host = host;
+            this.server = server;
+        }
+    }
+
+    /* copy on write, readers take whatever ring is current */
+    private volatile TreeMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+    private final LinkedHashMap<String, Shard> shards = new LinkedHashMap<String, Shard>();
+    private ProxyCallback callback;
+    private PeerCall peer;
+    /* upload sessions: our id -> the shard and its id */
+    private final ConcurrentHashMap<Long, Session> sessions
+        = new ConcurrentHashMap<Long, Session>();
+    private final AtomicLong sessionIds = new AtomicLong(1);
+
+    private static class Session {
+        final Shard shard;
+        final long id;
+
+        Session(Shard shard, long id) {
+            this.shard = shard;
+            this.id = id;
+        }
+    }
+
+    /* 64 bit FNV-1a with a final mix, for points and paths alike */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /* addShard: put server into the ring as name (host:port) */
+    public synchronized void addShard(String name, String host, RemoteCall server)
+        throws RemoteException {
+        Shard s = new Shard(name, host, server);
+        if (callback != null)
+            s.proxyId = server.register(callback);
+        if (peer != null)
+            s.peerId = server.registerPeer(peer);
+        shards.put(name, s);
+        rebuild();
+    }
+
+    /* removeShard: its paths go to the next points of the ring */
+    public synchronized void removeShard(String name) {
+        if (shards.remove(name) != null)
+            rebuild();
+    }
+
+    private void rebuild() {
+        TreeMap<Long, Shard> r = new TreeMap<Long, Shard>();
+        for (Shard s : shards.values())
+            for (int i = 0; i < VNODES; i++)
+                r.put(hash(s.name + "#" + i), s);
+        ring = r;
+    }
+
+    private Shard shardFor(String path) throws RemoteException {
+        TreeMap<Long, Shard> r = ring;
+        if (r.isEmpty())
+            throw new RemoteException("no servers in the ring");
+        Map.Entry<Long, Shard> e = r.ceilingEntry(hash(path));
+        return (e != null) ? e.getValue() : r.firstEntry().getValue();
+    }
+
+    private static FileInfo tag(FileInfo fi, Shard s) {
+        if (fi != null)
+            fi.dataHost = s.host;
+        return fi;
+    }
+
+    public FileInfo getVersion(String path, FileHandling.OpenOption o)
+        throws RemoteException {
+        Shard s = shardFor(path);
+        return tag(s.server.getVersion(path, o), s);
+    }
+
+    public FileInfo validate(String path, FileHandling.OpenOption o, long cachedVersion,
+                             int inline, int proxyId) throws RemoteException {
+        Shard s = shardFor(path);
+        return tag(s.server.validate(path, o, cachedVersion, inline,
+                                     proxyId > 0 ? s.proxyId : 0), s);
+    }
+
+    /* register with every server, 1 is our id for all of them */
+    public synchronized int register(ProxyCallback cb) throws RemoteException {
+        callback = cb;
+        for (Shard s : shards.values())
+            s.proxyId = s.server.register(cb);
+        return 1;
+    }
+
+    /* the same for peers, whose holders each server tracks for its
+     * own paths */
+    public synchronized int registerPeer(PeerCall p) throws RemoteException {
+        peer = p;
+        for (Shard s : shards.values())
+            s.peerId = s.server.registerPeer(p);
+        return 1;
+    }
+
+    public void holding(String path, long version, int peerId) throws RemoteException {
+        Shard s = shardFor(path);
+        s.server.holding(path, version, s.peerId);
+    }
+
+    public PeerCall[] peersFor(String path, long version, int peerId)
+        throws RemoteException {
+        Shard s = shardFor(path);
+        return s.server.peersFor(path, version, s.peerId);
+    }
+
+    public void peerFailed(String path, PeerCall peer) throws RemoteException {
+        shardFor(path).server.peerFailed(path, peer);
+    }
+
+    public synchronized void unregisterPeer(int peerId) throws RemoteException {
+        peer = null;
+        for (Shard s : shards.values()) {
+            if (s.peerId > 0)
+                s.server.unregisterPeer(s.peerId);
+            s.peerId = 0;
+        }
+    }
+
+    public Bus sendToProxy(FileInfo fi, long offset) throws RemoteException {
+        return shardFor(fi.path).server.sendToProxy(fi, offset);
+    }
+
+    public Delta.Script deltaToProxy(FileInfo fi, Delta.Signature sig)
+        throws RemoteException {
+        return shardFor(fi.path).server.deltaToProxy(fi, sig);
+    }
+
+    public void updateFromProxy(long offset, Bus bus, String path) throws RemoteException {
+        shardFor(path).server.updateFromProxy(offset, bus, path);
+    }
+
+    /* one batch per shard, each keeping the order it had in the whole */
+    public boolean[] updateBatch(String[] paths, Bus[] data) throws RemoteException {
+        boolean[] done = new boolean[paths.length];
+        LinkedHashMap<Shard, ArrayList<Integer>> parts
+            = new LinkedHashMap<Shard, ArrayList<Integer>>();
+        for (int i = 0; i < paths.length; i++) {
+            Shard s = shardFor(paths[i]);
+            ArrayList<Integer> l = parts.get(s);
+            if (l == null) {
+                l = new ArrayList<Integer>();
+                parts.put(s, l);
+            }
+            l.add(i);
+        }
+        for (Map.Entry<Shard, ArrayList<Integer>> e : parts.entrySet()) {
+            ArrayList<Integer> l = e.getValue();
+            String[] p = new String[l.size()];
+            Bus[] d = new Bus[l.size()];
+            for (int j = 0; j < l.size(); j++) {
+                p[j] = paths[l.get(j)];
+                d[j] = data[l.get(j)];
+            }
+            boolean[] part = e.getKey().server.updateBatch(p, d);
+            for (int j = 0; j < l.size(); j++)
+                done[l.get(j)] = part[j];
+        }
+        return done;
+    }
+
+    /* sessions get an id of ours, the shards' ids may clash */
+    public long beginUpload(String path, long baseVersion, long length)
+        throws RemoteException {
+        Shard s = shardFor(path);
+        long id = s.server.beginUpload(path, baseVersion, length);
+        if (id <= 0)
+            return id;
+        long ours = sessionIds.getAndIncrement();
+        sessions.put(ours, new Session(s, id));
+        return ours;
+    }
+
+    private Session session(long id) throws RemoteException {
+        Session u = sessions.get(id);
+        if (u == null)
+            throw new RemoteException("no upload session " + id);
+        return u;
+    }
+
+    public void uploadChunk(long id, long offset, Bus bus) throws RemoteException {
+        Session u = session(id);
+        u.shard.server.uploadChunk(u.id, offset, bus);
+    }
+
+    public boolean commitUpload(long id) throws RemoteException {
+        Session u = sessions.remove(id);
+        return u != null && u.shard.server.commitUpload(u.id);
+    }
+
+    public void abortUpload(long id) throws RemoteException {
+        Session u = sessions.remove(id);
+        if (u != null)
+            u.shard.server.abortUpload(u.id);
+    }
+
+    public boolean resizeFromProxy(String path, long baseVersion, long length)
+        throws RemoteException {
+        return shardFor(path).server.resizeFromProxy(path, baseVersion, length);
+    }
+
+    public int unlinkFile(String path) throws RemoteException {
+        return shardFor(path).server.unlinkFile(path);
+    }
+}
@@ -0,0 +1,145 @@
+/* TinyLfuPolicy.java:
+ *    W-TinyLFU: new files land in a small lru window, files pushed
+ *    out of it join a segmented lru (probation, then protected on a
+ *    second use). When room is needed the window's victim competes
+ *    with the main victim on how often each path was asked for, and
+ *    the less popular one goes, so a file scanned once can not flush
+ *    the hot ones. The counts come from a count-min sketch that is
+ *    halved now and then so old popularity fades.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final LruList window = new LruList();
+    private final LruList probation = new LruList();
+    private final LruList prot = new LruList();
+    private final Sketch sketch = new Sketch(1 << 16);
+
+    public void record(String path) {
+        sketch.increment(path);
+    }
+
+    public void add(MyFile f) {
+        f.seg = WINDOW;
+        window.linkFirst(f);
+        /* the window holds about 1% of the files */
+        int max = Math.max(1, count() / 100);
+        while (window.count > max) {
+            MyFile old = window.tail;
+            window.unlink(old);
+            old.seg = PROBATION;
+            probation.linkFirst(old);
+        }
+    }
+
+    public void access(MyFile f) {
+        switch (f.seg) {
+        case WINDOW:
+            window.moveFirst(f);
+            break;
+        case PROBATION:
+            probation.unlink(f);
+            f.seg = PROTECTED;
+            prot.linkFirst(f);
+            /* protected is 80% of the main space */
+            int max = Math.max(1, (probation.count + prot.count) * 4 / 5);
+            while (prot.count > max) {
+                MyFile old = prot.tail;
+                prot.unlink(old);
+                old.seg = PROBATION;
+                probation.linkFirst(old);
+            }
+            break;
+        default:
+            prot.moveFirst(f);
+        }
+    }
+
+    public void remove(MyFile f) {
+        listOf(f).unlink(f);
+    }
+
+    /* out of its list while in use, f.seg remembers which one */
+    public void pin(MyFile f) {
+        listOf(f).unlink(f);
+    }
+
+    public void unpin(MyFile f) {
+        listOf(f).linkFirst(f);
+    }
+
+    public MyFile victim() {
+        MyFile cand = window.last();
+        MyFile vic = probation.last();
+        if (vic == null) vic = prot.last();
+        if (cand == null) return vic;
+        if (vic == null) return cand;
+        /* the candidate is only let in over a more popular file */
+        if (sketch.frequency(cand.path) > sketch.frequency(vic.path))
+            return vic;
+        return cand;
+    }
+
+    private int count() {
+        return window.count + probation.count + prot.count;
+    }
+
+    private LruList listOf(MyFile f) {
+        if (f.seg == WINDOW) return window;
+        if (f.seg == PROBATION) return probation;
+        return prot;
+    }
+
+    /* count-min sketch, 4 rows of 4 bit counters kept in bytes */
+    private static class Sketch {
+        private static final int[] SEEDS =
+            {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+        private final byte[][] rows;
+        private final int mask;
+        private final int period;
+        private int additions;
+
+        Sketch(int width) {
+            rows = new byte[SEEDS.length][width];
+            mask = width - 1;
+            period = width * 10;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int i = 0; i < rows.length; i++) {
+                int j = index(hash, i);
+                if (rows[i][j] < 15) {
+                    rows[i][j]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions == period)
+                reset();
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = 15;
+            for (int i = 0; i < rows.length; i++)
+                min = Math.min(min, rows[i][index(hash, i)]);
+            return min;
+        }
+
+        /* aging, halve every counter */
+        private void reset() {
+            for (byte[] row : rows)
+                for (int j = 0; j < row.length; j++)
+                    row[j] >>= 1;
+            additions /= 2;
+        }
+    }
+}
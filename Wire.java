@@ -0,0 +1,282 @@
+/* Wire.java:
+ *    binary encoding of RemoteCall arguments and results for the
+ *    RpcServer / RpcClient transport. A frame is
+ *        int length | long call id | byte op | body
+ *    where length counts everything after itself. A request's op is
+ *    the method, a reply's is OK or ERROR (body: the message), and the
+ *    server pushes INVALIDATE frames with call id 0 to proxies that
+ *    registered for callbacks on the connection.
+ *
+ *    Strings and arrays go as an int length, -1 for null, then the
+ *    elements; nullable records are led by a 0/1 byte.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+public class Wire {
+    /* requests, one per RemoteCall method */
+    public static final byte GET_VERSION = 1;
+    public static final byte VALIDATE = 2;
+    public static final byte REGISTER = 3;
+    public static final byte SEND = 4;
+    public static final byte DELTA = 5;
+    public static final byte UPDATE = 6;
+    public static final byte UPDATE_BATCH = 7;
+    public static final byte BEGIN_UPLOAD = 8;
+    public static final byte UPLOAD_CHUNK = 9;
+    public static final byte COMMIT_UPLOAD = 10;
+    public static final byte ABORT_UPLOAD = 11;
+    public static final byte RESIZE = 12;
+    public static final byte UNLINK = 13;
+    /* replies and pushes */
+    public static final byte OK = 64;
+    public static final byte ERROR = 65;
+    public static final byte INVALIDATE = 66;
+
+    // a frame with no chunk in it: paths, a FileInfo without data
+    private static final int SMALL = 1 << 16;
+    private static final int CHUNK = Server.busSize + SMALL;
+    // largest reply, a delta script: its literals and op headers
+    private static final int REPLY = Server.DELTA_LITERAL + 16 * Delta.MAX_OPS + SMALL;
+    // largest frame taken off the wire, a full write-back batch
+    public static final int MAX_FRAME = WriteBack.BATCH * CHUNK;
+
+    /* a frame being put together, with room for its length up front */
+    public static class Frame extends ByteArrayOutputStream {
+        public final DataOutputStream out = new DataOutputStream(this);
+
+        public Frame(long id, byte op) {
+            super(256);
+            try {
+                out.writeInt(0);
+                out.writeLong(id);
+                out.writeByte(op);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /* the whole frame with its length filled in */
+        public ByteBuffer finish() {
+            ByteBuffer b = ByteBuffer.wrap(buf, 0, count);
+            b.putInt(0, count - 4);
+            return b;
+        }
+    }
+
+    /* write a finished frame, the caller keeps other writers out */
+    public static void send(SocketChannel sock, Frame f) throws IOException {
+        ByteBuffer b = f.finish();
+        while (b.hasRemaining())
+            sock.write(b);
+    }
+
+    /* most bytes a frame with op may take after its length; checked
+     * before the body is allocated, so a bad length costs nothing */
+    static int limit(byte op) {
+        switch (op) {
+        case SEND:              // the FileInfo may carry inline data
+        case UPDATE:
+        case UPLOAD_CHUNK:
+            return CHUNK;
+        case DELTA:             // a signature is under a chunk
+            return 2 * CHUNK;
+        case UPDATE_BATCH:
+            return MAX_FRAME;
+        case OK:                // any reply, a delta script the largest
+            return REPLY;
+        default:
+            return SMALL;
+        }
+    }
+
+    /* the next frame after its length, positioned at the call id;
+     * head is a buffer of HEAD bytes kept by the reader */
+    public static final int HEAD = 13;
+    public static DataInputStream receive(SocketChannel sock, ByteBuffer head)
+        throws IOException {
+        head.clear();
+        readFully(sock, head);
+        int len = head.getInt(0);
+        byte op = head.get(HEAD - 1);
+        if (len < HEAD - 4 || len > limit(op))
+            throw new IOException("bad frame length " + len + " for op " + op);
+        ByteBuffer body = ByteBuffer.allocate(len);
+        head.position(4);
+        body.put(head);
+        readFully(sock, body);
+        return new DataInputStream(new ByteArrayInputStream(body.array()));
+    }
+
+    private static void readFully(SocketChannel sock, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (sock.read(buf) < 0) throw new EOFException();
+        }
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) return null;
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    public static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    public static byte[] readBytes(DataInput in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) return null;
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return b;
+    }
+
+    public static void writeOption(DataOutput out, FileHandling.OpenOption o)
+        throws IOException {
+        out.writeByte(o == null ? -1 : o.ordinal());
+    }
+
+    public static FileHandling.OpenOption readOption(DataInput in) throws IOException {
+        int o = in.readByte();
+        return (o < 0) ? null : FileHandling.OpenOption.values()[o];
+    }
+
+    /* only the size bytes of the buffer that are in use go out */
+    public static void writeBus(DataOutput out, Bus bus) throws IOException {
+        out.writeBoolean(bus != null);
+        if (bus == null) return;
+        out.writeInt(bus.size);
+        out.writeBoolean(bus.deflated);
+        out.writeInt(bus.rawSize);
+        out.write(bus.buffer, 0, bus.size);
+    }
+
+    public static Bus readBus(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        Bus bus = new Bus(in.readInt());
+        bus.deflated = in.readBoolean();
+        bus.rawSize = in.readInt();
+        in.readFully(bus.buffer, 0, bus.size);
+        return bus;
+    }
+
+    public static void writeInfo(DataOutput out, FileInfo fi) throws IOException {
+        out.writeBoolean(fi != null);
+        if (fi == null) return;
+        out.writeLong(fi.size);
+        out.writeLong(fi.version);
+        out.writeInt(fi.errno);
+        out.writeBoolean(fi.isDir);
+        out.writeBoolean(fi.exist);
+        out.writeBoolean(fi.canRead);
+        out.writeBoolean(fi.canWrite);
+        writeString(out, fi.sPath);
+        writeString(out, fi.path);
+        out.writeInt(fi.dataPort);
+        writeString(out, fi.dataHost);
+        writeBus(out, fi.data);
+        out.writeLong(fi.lease);
+        out.writeBoolean(fi.compress);
+    }
+
+    public static FileInfo readInfo(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        FileInfo fi = new FileInfo();
+        fi.size = in.readLong();
+        fi.version = in.readLong();
+        fi.errno = in.readInt();
+        fi.isDir = in.readBoolean();
+        fi.exist = in.readBoolean();
+        fi.canRead = in.readBoolean();
+        fi.canWrite = in.readBoolean();
+        fi.sPath = readString(in);
+        fi.path = readString(in);
+        fi.dataPort = in.readInt();
+        fi.dataHost = readString(in);
+        fi.data = readBus(in);
+        fi.lease = in.readLong();
+        fi.compress = in.readBoolean();
+        return fi;
+    }
+
+    public static void writeSignature(DataOutput out, Delta.Signature sig)
+        throws IOException {
+        out.writeInt(sig.blockSize);
+        out.writeLong(sig.length);
+        out.writeInt(sig.weak.length);
+        for (int i = 0; i < sig.weak.length; i++) {
+            out.writeInt(sig.weak[i]);
+            writeBytes(out, sig.strong[i]);
+        }
+    }
+
+    public static Delta.Signature readSignature(DataInput in) throws IOException {
+        Delta.Signature sig = new Delta.Signature();
+        sig.blockSize = in.readInt();
+        sig.length = in.readLong();
+        int n = in.readInt();
+        sig.weak = new int[n];
+        sig.strong = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            sig.weak[i] = in.readInt();
+            sig.strong[i] = readBytes(in);
+        }
+        return sig;
+    }
+
+    public static void writeScript(DataOutput out, Delta.Script s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s == null) return;
+        out.writeLong(s.length);
+        out.writeLong(s.literal);
+        out.writeInt(s.ops.size());
+        for (Delta.Op op : s.ops) {
+            out.writeLong(op.from);
+            out.writeInt(op.len);
+            writeBytes(out, op.data);
+        }
+    }
+
+    public static Delta.Script readScript(DataInput in) throws IOException {
+        if (!in.readBoolean()) return null;
+        Delta.Script s = new Delta.Script();
+        s.length = in.readLong();
+        s.literal = in.readLong();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            Delta.Op op = new Delta.Op();
+            op.from = in.readLong();
+            op.len = in.readInt();
+            op.data = readBytes(in);
+            s.ops.add(op);
+        }
+        return s;
+    }
+}
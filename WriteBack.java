@@ -0,0 +1,177 @@
+/* WriteBack.java:
+ *    background uploads of closed write copies. close hands the fd's
+ *    view over and returns, worker threads flush the views in close
+ *    order per path: a path is never flushed by two workers at once,
+ *    and a later close of a path never overtakes an earlier one. Small
+ *    copies queued together go to the server in one batch. open and
+ *    unlink of a path wait for its flushes, see await.
+ */
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WriteBack {
+    private static final int MAX_QUEUED = 1024;
+    public static final int BATCH = 32;
+
+    /* does the actual uploads, and drops the views afterwards */
+    public interface Flusher {
+        void flush(List<MyFile> views);
+    }
+
+    private static class Entry {
+        final MyFile view;
+        final boolean small;
+        final long queuedAt;
+
+        Entry(MyFile view, boolean small) {
+            this.view = view;
+            this.small = small;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final Flusher flusher;
+    private final long batchBytes;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+    /* paths a worker is flushing right now */
+    private final HashSet<String> busy = new HashSet<String>();
+    /* queued plus flushing views per path */
+    private final HashMap<String, Integer> pending = new HashMap<String, Integer>();
+
+    /* counters */
+    public final AtomicLong flushed = new AtomicLong();
+    public final AtomicLong batches = new AtomicLong();
+    public final AtomicLong latencyNanos = new AtomicLong();
+    public final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public WriteBack(Flusher flusher, int threads, long batchBytes) {
+        this.flusher = flusher;
+        // each batched file travels as one chunk
+        this.batchBytes = Math.min(batchBytes, Server.busSize);
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "writeback");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /* submit: queue a closed view, blocks while the queue is full */
+    public synchronized void submit(MyFile view, long length) {
+        while (queue.size() >= MAX_QUEUED) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        queue.add(new Entry(view, length <= batchBytes));
+        Integer n = pending.get(view.origPath);
+        pending.put(view.origPath, (n == null) ? 1 : n + 1);
+        notifyAll();
+    }
+
+    /* await: return once every close of path so far is on the server */
+    public synchronized void await(String path) {
+        while (pending.containsKey(path)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /* views waiting or being flushed */
+    public synchronized int depth() {
+        int n = 0;
+        for (int c : pending.values())
+            n += c;
+        return n;
+    }
+
+    private void work() {
+        while (true) {
+            List<Entry> batch = take();
+            ArrayList<MyFile> views = new ArrayList<MyFile>(batch.size());
+            for (Entry e : batch)
+                views.add(e.view);
+            try {
+                flusher.flush(views);
+            } catch (RuntimeException e) {
+                Log.error("write-back flush failed", e);
+            }
+            done(batch);
+        }
+    }
+
+    /* the oldest view whose path is not busy; if it is small, the
+     * small ones queued after it too, as long as no path gets ahead of
+     * one of its own earlier closes */
+    private synchronized List<Entry> take() {
+        while (true) {
+            ArrayList<Entry> out = new ArrayList<Entry>();
+            HashSet<String> blocked = new HashSet<String>(busy);
+            Iterator<Entry> it = queue.iterator();
+            while (it.hasNext() && out.size() < BATCH) {
+                Entry e = it.next();
+                String path = e.view.origPath;
+                if (blocked.contains(path))
+                    continue;
+                if (out.isEmpty() || e.small) {
+                    it.remove();
+                    out.add(e);
+                    if (!e.small) break;
+                } else {
+                    blocked.add(path);
+                }
+            }
+            if (!out.isEmpty()) {
+                for (Entry e : out)
+                    busy.add(e.view.origPath);
+                notifyAll();
+                return out;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void done(List<Entry> batch) {
+        long now = System.nanoTime();
+        for (Entry e : batch) {
+            String path = e.view.origPath;
+            busy.remove(path);
+            int n = pending.get(path) - 1;
+            if (n == 0) pending.remove(path);
+            else pending.put(path, n);
+            long lat = now - e.queuedAt;
+            latencyNanos.addAndGet(lat);
+            if (lat > maxLatencyNanos.get()) maxLatencyNanos.set(lat);
+        }
+        flushed.addAndGet(batch.size());
+        batches.incrementAndGet();
+        notifyAll();
+    }
+
+    public String report() {
+        long n = flushed.get();
+        return "write-back: depth " + depth() + ", flushed " + n + " in "
+            + batches.get() + " batches, latency avg "
+            + (n == 0 ? 0 : latencyNanos.get() / n / 1000000) + " ms, max "
+            + maxLatencyNanos.get() / 1000000 + " ms";
+    }
+}
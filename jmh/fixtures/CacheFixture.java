@@ -0,0 +1,84 @@
+/* CacheFixture.java:
+ *    a Cache full of one byte masters for the jmh benchmarks. Those
+ *    live in a package, as jmh needs, and can not name classes of the
+ *    default package, so they load this class by name and only use it
+ *    as a Function from an operation name to the operation.
+ */
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class CacheFixture implements Function<String, Supplier<Object>> {
+    private final Cache cache;
+    private final MyFile[] files;
+    private int fresh;
+
+    public CacheFixture(int entries, String policy) {
+        cache = new Cache(entries, Cache.policyFor(policy));
+        files = new MyFile[entries];
+        for (int i = 0; i < entries; i++) {
+            files[i] = master("bench_" + i);
+            cache.push(files[i]);
+            cache.add(files[i]);
+        }
+    }
+
+    private static MyFile master(String p) {
+        MyFile f = new MyFile(p, "/nonexistent/" + p, p);
+        f.fileSize = 1;
+        return f;
+    }
+
+    private int any() {
+        return ThreadLocalRandom.current().nextInt(files.length);
+    }
+
+    public Supplier<Object> apply(String op) {
+        if (op.equals("lookUp")) {
+            return new Supplier<Object>() {
+                public Object get() {
+                    return cache.lookUp(files[any()].path);
+                }
+            };
+        }
+        if (op.equals("update")) {
+            return new Supplier<Object>() {
+                public Object get() {
+                    MyFile f = files[any()];
+                    cache.update(f);
+                    return f;
+                }
+            };
+        }
+        /* the cache is always full, so every insert evicts a victim */
+        if (op.equals("makeRoom")) {
+            return new Supplier<Object>() {
+                public Object get() {
+                    synchronized (cache) {
+                        MyFile f = master("fresh_" + fresh++);
+                        cache.makeRoom(f.fileSize);
+                        cache.push(f);
+                        cache.add(f);
+                        return f;
+                    }
+                }
+            };
+        }
+        /* evict a random master and put a new one in its place */
+        if (op.equals("evict")) {
+            return new Supplier<Object>() {
+                public Object get() {
+                    synchronized (cache) {
+                        int i = any();
+                        cache.evict(files[i]);
+                        files[i] = master("fresh_" + fresh++);
+                        cache.push(files[i]);
+                        cache.add(files[i]);
+                        return files[i];
+                    }
+                }
+            };
+        }
+        throw new IllegalArgumentException("no cache operation " + op);
+    }
+}
@@ -0,0 +1,107 @@
+/* ProxyFixture.java:
+ *    an in-process Server on a localhost registry and a Proxy talking
+ *    to it, for the jmh benchmarks (see CacheFixture for why they go
+ *    through a Function). The server root holds entries files of
+ *    fileSize bytes each.
+ *
+ *    apply("hit") and apply("miss") give a new client each, whose get
+ *    opens a file, reads it whole and closes it, returning the bytes
+ *    read. For hit every file is cached beforehand; for miss the cache
+ *    holds only half of them and the clients walk through all of them
+ *    in turn, so with lru every open is a cold miss and a download.
+ *
+ *    transport "binary" has the proxy talk to the server's RpcServer
+ *    on port + 1 instead of rmi.
+ */
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public class ProxyFixture implements Function<String, Supplier<Object>> {
+    private final int entries;
+    private final long fileSize;
+    private final FileHandlingMaking factory;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public ProxyFixture(int port, long fileSize, int entries, String mode,
+                        String transport, String dir) throws Exception {
+        this.entries = entries;
+        this.fileSize = fileSize;
+        wipe(new File(dir));
+        File root = new File(dir, "server");
+        root.mkdirs();
+        Random rand = new Random(entries);
+        byte[] buf = new byte[(int)Math.min(fileSize, 1 << 20)];
+        for (int i = 0; i < entries; i++) {
+            FileOutputStream out = new FileOutputStream(new File(root, "f" + i));
+            for (long left = fileSize; left > 0; left -= buf.length) {
+                rand.nextBytes(buf);
+                out.write(buf, 0, (int)Math.min(left, buf.length));
+            }
+            out.close();
+        }
+        boolean binary = transport.equals("binary");
+        if (binary)
+            System.setProperty("rpcPort", Integer.toString(port + 1));
+        Server.main(new String[] {Integer.toString(port), root.getCanonicalPath()});
+
+        long cacheSize = mode.equals("miss")
+            ? Math.max(fileSize, fileSize * entries / 2) : fileSize * entries;
+        /* the proxy takes its cache dir relative to the working dir */
+        new Proxy(new String[] {"127.0.0.1", Integer.toString(binary ? port + 1 : port),
+                                dir + "/cache", Long.toString(cacheSize), "index=off",
+                                "transport=" + transport});
+        Constructor<?> c = Class.forName("Proxy$FileHandlingFactory").getDeclaredConstructor();
+        c.setAccessible(true);
+        factory = (FileHandlingMaking) c.newInstance();
+
+        if (mode.equals("hit")) {
+            Supplier<Object> warm = client(false);
+            for (int i = 0; i < entries; i++)
+                warm.get();
+        }
+    }
+
+    /* start from an empty work dir, nothing left by an earlier fork */
+    private static void wipe(File f) {
+        File[] kids = f.listFiles();
+        if (kids != null)
+            for (File k : kids)
+                wipe(k);
+        f.delete();
+    }
+
+    public Supplier<Object> apply(String op) {
+        if (op.equals("hit")) return client(true);
+        if (op.equals("miss")) return client(false);
+        throw new IllegalArgumentException("no proxy operation " + op);
+    }
+
+    private Supplier<Object> client(final boolean random) {
+        final FileHandling fh = factory.newclient();
+        final byte[] buf = new byte[1 << 16];
+        return new Supplier<Object>() {
+            public Object get() {
+                int i = random ? ThreadLocalRandom.current().nextInt(entries)
+                               : Math.floorMod(next.getAndIncrement(), entries);
+                int fd = fh.open("f" + i, FileHandling.OpenOption.READ);
+                if (fd < 0)
+                    throw new IllegalStateException("open f" + i + ": " + fd);
+                long total = 0;
+                long n;
+                while ((n = fh.read(fd, buf)) > 0)
+                    total += n;
+                fh.close(fd);
+                if (total != fileSize)
+                    throw new IllegalStateException("read " + total + " of f" + i);
+                return total;
+            }
+        };
+    }
+}
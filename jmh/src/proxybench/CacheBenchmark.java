@@ -0,0 +1,74 @@
+/* CacheBenchmark.java:
+ *    jmh benchmarks of the Cache bookkeeping, per eviction policy and
+ *    number of cached entries. Run with -t to have that many threads
+ *    share one cache.
+ */
+package proxybench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    @Param({"lru", "tinylfu", "gdsf"})
+    public String policy;
+
+    private Supplier<Object> lookUp;
+    private Supplier<Object> update;
+    private Supplier<Object> makeRoom;
+    private Supplier<Object> evict;
+
+    @SuppressWarnings("unchecked")
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Function<String, Supplier<Object>> cache = (Function<String, Supplier<Object>>)
+            Class.forName("CacheFixture").getConstructor(int.class, String.class)
+                 .newInstance(entries, policy);
+        lookUp = cache.apply("lookUp");
+        update = cache.apply("update");
+        makeRoom = cache.apply("makeRoom");
+        evict = cache.apply("evict");
+    }
+
+    @Benchmark
+    public Object lookUp() {
+        return lookUp.get();
+    }
+
+    @Benchmark
+    public Object update() {
+        return update.get();
+    }
+
+    @Benchmark
+    public Object makeRoom() {
+        return makeRoom.get();
+    }
+
+    @Benchmark
+    public Object evict() {
+        return evict.get();
+    }
+}
@@ -0,0 +1,81 @@
+/* ProxyBenchmark.java:
+ *    jmh benchmarks of whole opens through FileHandler against an
+ *    in-process Server: open/read/close of a cached file (hit), and
+ *    of a file that has to be downloaded first (miss). Each jmh
+ *    thread is a client of its own, set their number with -t.
+ *    Bytes per second are ops per second times fileSize. transport
+ *    compares rmi with the binary RpcServer; run with -bm sample for
+ *    the tail latencies.
+ */
+package proxybench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProxyBenchmark {
+    /* one server and proxy per fork, shared by all threads */
+    @State(Scope.Benchmark)
+    public static class Setting {
+        @Param({"4096", "1048576", "8388608"})
+        public long fileSize;
+
+        @Param({"16", "64"})
+        public int entries;
+
+        @Param({"hit", "miss"})
+        public String mode;
+
+        @Param({"rmi", "binary"})
+        public String transport;
+
+        @Param({"15440"})
+        public int port;
+
+        Function<String, Supplier<Object>> proxy;
+
+        @SuppressWarnings("unchecked")
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            proxy = (Function<String, Supplier<Object>>)
+                Class.forName("ProxyFixture")
+                     .getConstructor(int.class, long.class, int.class,
+                                     String.class, String.class, String.class)
+                     .newInstance(port, fileSize, entries, mode, transport, "jmh-work");
+        }
+    }
+
+    /* a client per thread */
+    @State(Scope.Thread)
+    public static class Client {
+        Supplier<Object> open;
+
+        @Setup(Level.Trial)
+        public void setup(Setting s) {
+            open = s.proxy.apply(s.mode);
+        }
+    }
+
+    @Benchmark
+    public Object openReadClose(Client c) {
+        return c.open.get();
+    }
+}